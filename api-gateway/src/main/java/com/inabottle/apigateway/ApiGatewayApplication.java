@@ -27,6 +27,9 @@ public class ApiGatewayApplication {
                         .filters(f -> f.hystrix(c -> c.setName("directFallback")
                                 .setFallbackUri("forward:/empty-fallback")))
                         .uri("lb://direct-message-service"))
+                // bulk imports stream for as long as the upload lasts, past any hystrix timeout
+                .route("direct-message-service-import", r -> r.path("/direct/import")
+                        .uri("lb://direct-message-service/"))
                 .route("direct-message-service-id", r -> r.path("/direct/**")
                         .filters(f -> f.hystrix(c -> c.setName("directFallback").setFallbackUri("forward:/empty-fallback"))
                                 .rewritePath("direct-message-service/(?<segment>.*)", "direct-message-service/${segment}"))
@@ -36,6 +39,9 @@ public class ApiGatewayApplication {
                         .filters(f -> f.hystrix(c -> c.setName("hubFallback")
                                 .setFallbackUri("forward:/empty-fallback")))
                         .uri("lb://hub-service"))
+                // long-lived event streams must not be cut by the hystrix timeout
+                .route("hub-service-stream", r -> r.path("/hub/*/stream")
+                        .uri("lb://hub-service/"))
                 .route("hub-service-id", r -> r.path("/hub/**")
                         .filters(f -> f.hystrix(c -> c.setName("hubFallback").setFallbackUri("forward:/empty-fallback"))
                                 .rewritePath("hub-service/(?<segment>.*)", "hub-service/${segment}"))
@@ -60,6 +66,14 @@ public class ApiGatewayApplication {
                                 .rewritePath("user-service/(?<segment>.*)", "user-service/${segment}"))
                         .uri("lb://user-service/"))
 
+                // history exports stream for as long as the client reads, past any hystrix timeout
+                .route("point-service-history", r -> r.path("/points/history/**")
+                        .uri("lb://point-service/"))
+                .route("point-service", r -> r.path("/points/**")
+                        .filters(f -> f.hystrix(c -> c.setName("pointsFallback").setFallbackUri("forward:/empty-fallback"))
+                                .rewritePath("point-service/(?<segment>.*)", "point-service/${segment}"))
+                        .uri("lb://point-service/"))
+
 
                 .build();
     }
@@ -1,47 +1,103 @@
 package com.example.directmessageservice;
 
-
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.inabottle.messaging.DeliveryRetry;
+import com.inabottle.messaging.RecentSelectorFilter;
+import com.inabottle.messaging.TypedJacksonMessageConverter;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.model.InsertManyOptions;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AnonymousQueue;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.amqp.support.converter.ContentTypeDelegatingMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.context.annotation.Bean;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.geo.GeoJsonPoint;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.GeoSpatialIndexType;
+import org.springframework.data.mongodb.core.index.GeoSpatialIndexed;
+import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.event.ReactiveBeforeConvertCallback;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.*;
 import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.io.Serializable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
 @EnableEurekaClient
 @EnableDiscoveryClient
 @SpringBootApplication
 @Slf4j
 class DirectMessageServiceApplication {
 
+    private static final int BACKFILL_CONCURRENCY = 8;
+
     public static void main(String[] args) {
         SpringApplication.run(DirectMessageServiceApplication.class, args);
     }
@@ -64,19 +120,96 @@ class DirectMessageServiceApplication {
     }
 
     @Bean
-    public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory) {
+    Queue deadLetterQueue() {
+        // deliveries that keep failing end up here for inspection instead of cycling forever
+        return new Queue(DirectMessageBatchListener.QUEUE + DeliveryRetry.DEAD_LETTER_SUFFIX, true);
+    }
+
+    @Bean
+    Queue cacheEvictQueue() {
+        // one queue per instance, so every instance hears every eviction
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    Binding cacheEvictBinding(Queue cacheEvictQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(cacheEvictQueue).to(exchange).with(DirectMessageCache.EVICT_ROUTING_KEY);
+    }
+
+    @Bean
+    public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory, final MessageConverter messageConverter) {
         final var rabbitTemplate = new RabbitTemplate(connectionFactory);
-        rabbitTemplate.setMessageConverter(producerJackson2MessageConverter());
+        rabbitTemplate.setMessageConverter(messageConverter);
         return rabbitTemplate;
     }
 
     @Bean
-    public Jackson2JsonMessageConverter producerJackson2MessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    public MessageConverter messageConverter(ObjectMapper objectMapper) {
+        // producers pick the encoding; anything not marked as Smile is read as JSON
+        final var converter = new ContentTypeDelegatingMessageConverter(TypedJacksonMessageConverter.json(objectMapper));
+        converter.addDelegate(TypedJacksonMessageConverter.SMILE, TypedJacksonMessageConverter.smile());
+        return converter;
+    }
+
+    @Bean
+    SimpleRabbitListenerContainerFactory batchContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                               ConnectionFactory connectionFactory,
+                                                               @Value("${direct.consumer.batch.prefetch:2000}") int prefetch) {
+        final var factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        // deliveries stay unacked until their batch is in Mongo, so prefetch bounds what sits in memory
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(prefetch);
+        return factory;
+    }
+
+    @Bean
+    DeliveryRetry deliveryRetry(RabbitTemplate rabbitTemplate, @Value("${direct.consumer.max-attempts:5}") int maxAttempts) {
+        return new DeliveryRetry(rabbitTemplate, maxAttempts);
+    }
+
+    @Bean
+    RecentSelectorFilter recentSelectorFilter(MeterRegistry meterRegistry,
+                                              @Value("${direct.dedupe.expected-per-window:100000}") int expectedPerWindow,
+                                              @Value("${direct.dedupe.false-positive-rate:0.01}") double falsePositiveRate,
+                                              @Value("${direct.dedupe.window:10m}") Duration window,
+                                              @Value("${direct.dedupe.confirm-size:50000}") int confirmSize) {
+        return new RecentSelectorFilter("direct", expectedPerWindow, falsePositiveRate, window, confirmSize, meterRegistry);
+    }
+
+    @Bean
+    ApplicationRunner backfillDerivedFields(ReactiveMongoTemplate mongoTemplate, DirectMessageDerivedFields derivedFields) {
+        // bottles stored before a derived field existed, or under another expiry setting, would be missed by
+        // proximity searches or expire when they should not
+        return args -> {
+            final Query stale = query(derivedFields.stale());
+            stale.fields().include("latitude").include("longitude").include("createdAt").include("status");
+            mongoTemplate.find(stale, DirectMessage.class)
+                    .flatMap(message -> {
+                        // only the derived fields are written, and only while their sources are as read
+                        final Query unchanged = query(where("_id").is(message.getSelector())
+                                .and("latitude").is(message.getLatitude())
+                                .and("longitude").is(message.getLongitude())
+                                .and("createdAt").is(message.getCreatedAt())
+                                .and("status").is(message.getStatus()));
+                        final DirectMessage derived = derivedFields.apply(message);
+                        final Update update = new Update().set("location", derived.getLocation());
+                        if (derived.getExpireAt() == null) {
+                            update.unset("expireAt");
+                        } else {
+                            update.set("expireAt", derived.getExpireAt());
+                        }
+                        return mongoTemplate.updateFirst(unchanged, update, DirectMessage.class);
+                    }, BACKFILL_CONCURRENCY)
+                    .reduce(0L, (filled, result) -> filled + result.getModifiedCount())
+                    .subscribe(filled -> log.info("derived fields filled in for " + filled + " bottles"));
+        };
     }
 }
 
 @Document
+@CompoundIndex(name = "hunt_created", def = "{'huntId': 1, 'createdAt': 1, '_id': 1}")
+@CompoundIndex(name = "created", def = "{'createdAt': 1, '_id': 1}")
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -93,62 +226,650 @@ class DirectMessage implements Serializable {
     private String text;
     private String title;
     private UUID huntId;
+    @JsonIgnore
+    @GeoSpatialIndexed(type = GeoSpatialIndexType.GEO_2DSPHERE)
+    private GeoJsonPoint location;
+    @JsonIgnore
+    @Indexed(expireAfterSeconds = 0)
+    private Date expireAt;
+}
+
+/**
+ * Map view of a bottle: just enough to place and label a marker.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class DirectMessageMarker {
+    @Id
+    private UUID selector;
+    private double latitude;
+    private double longitude;
+    private double reach;
+    private String title;
+
+    static DirectMessageMarker of(DirectMessage message) {
+        return new DirectMessageMarker(message.getSelector(), message.getLatitude(), message.getLongitude(), message.getReach(), message.getTitle());
+    }
 }
 
 interface DirectMessageRepository extends ReactiveMongoRepository<DirectMessage, UUID> {
+
+    Flux<DirectMessageMarker> findAllBy();
+
+    Mono<DirectMessageMarker> findMarkerBySelector(UUID selector);
+
+    Flux<DirectMessage> findByHuntId(UUID huntId, Sort sort);
+
+    Flux<DirectMessageMarker> findMarkersByHuntId(UUID huntId, Sort sort);
+
+    /**
+     * Bottles within {@code radius} meters of the position whose reach, widened by {@code margin}
+     * meters, gets to the position; nearest first. Reach is in meters.
+     */
+    @Aggregation(pipeline = {
+            "{ $geoNear: { near: { type: 'Point', coordinates: [ ?1, ?0 ] }, distanceField: 'distance', maxDistance: ?2, spherical: true } }",
+            "{ $match: { $expr: { $lte: [ '$distance', { $add: [ '$reach', ?3 ] } ] } } }",
+            "{ $limit: ?4 }"
+    })
+    Flux<DirectMessage> findReaching(double latitude, double longitude, double radius, double margin, int limit);
+}
+
+/**
+ * Fills the fields derived from others before a bottle is written. Bottles expire {@code direct.expiry.ttl}
+ * after they were created, unless their status is one of {@code direct.expiry.retain-statuses}; a zero
+ * ttl keeps every bottle.
+ */
+@Component
+class DirectMessageDerivedFields implements ReactiveBeforeConvertCallback<DirectMessage> {
+
+    private final Duration ttl;
+    private final Set<String> retainStatuses;
+
+    public DirectMessageDerivedFields(@Value("${direct.expiry.ttl:0}") Duration ttl,
+                                      @Value("${direct.expiry.retain-statuses:}") Set<String> retainStatuses) {
+        this.ttl = ttl;
+        this.retainStatuses = retainStatuses;
+    }
+
+    @Override
+    public Publisher<DirectMessage> onBeforeConvert(DirectMessage message, String collection) {
+        return Mono.just(apply(message));
+    }
+
+    public DirectMessage apply(DirectMessage message) {
+        message.setLocation(new GeoJsonPoint(message.getLongitude(), message.getLatitude()));
+        if (ttl.isZero() || retainStatuses.contains(message.getStatus())) {
+            message.setExpireAt(null);
+        } else {
+            final long createdAt = message.getCreatedAt() != null ? message.getCreatedAt() : System.currentTimeMillis();
+            message.setExpireAt(new Date(createdAt + ttl.toMillis()));
+        }
+        return message;
+    }
+
+    /**
+     * Matches bottles whose derived fields are missing or disagree with the current expiry settings.
+     */
+    public Criteria stale() {
+        final Criteria noLocation = where("location").exists(false);
+        if (ttl.isZero()) {
+            return new Criteria().orOperator(noLocation, where("expireAt").exists(true));
+        }
+        return new Criteria().orOperator(noLocation,
+                where("expireAt").exists(false).and("status").nin(retainStatuses),
+                where("expireAt").exists(true).and("status").in(retainStatuses));
+    }
+}
+
+/**
+ * Proximity lookups served from an in-memory grid. The world is cut into square cells of
+ * {@code cell-size} degrees; the first lookup in a cell loads every bottle that could reach any point
+ * of the cell from up to {@code max-cached-radius} meters away, and later lookups in that cell, while
+ * the entry lives, are answered by filtering those bottles in memory. Hot regions therefore cost one
+ * query per cell per {@code cache-ttl}. Larger radii, and cells holding more than {@code cell-capacity}
+ * bottles, go to Mongo directly.
+ */
+@Component
+class BottleGrid {
+
+    private static final double EARTH_RADIUS_METERS = 6_371_000;
+
+    private final DirectMessageRepository directMessageRepository;
+    private final double cellSize;
+    private final double maxCachedRadius;
+    private final int cellCapacity;
+    private final AsyncCache<Long, List<DirectMessage>> cells;
+
+    public BottleGrid(DirectMessageRepository directMessageRepository,
+                      @Value("${direct.geo.cell-size:0.01}") double cellSize,
+                      @Value("${direct.geo.max-cached-radius:2000}") double maxCachedRadius,
+                      @Value("${direct.geo.cell-capacity:2000}") int cellCapacity,
+                      @Value("${direct.geo.cache-ttl:5s}") Duration cacheTtl,
+                      @Value("${direct.geo.max-cells:10000}") long maxCells) {
+        this.directMessageRepository = directMessageRepository;
+        this.cellSize = cellSize;
+        this.maxCachedRadius = maxCachedRadius;
+        this.cellCapacity = cellCapacity;
+        this.cells = Caffeine.newBuilder()
+                .maximumSize(maxCells)
+                .expireAfterWrite(cacheTtl)
+                .buildAsync();
+    }
+
+    /**
+     * Bottles within {@code radius} meters whose reach covers the position, nearest first.
+     */
+    public Flux<DirectMessage> findCovering(double latitude, double longitude, double radius, int limit) {
+        if (radius > maxCachedRadius) {
+            return directMessageRepository.findReaching(latitude, longitude, radius, 0, limit);
+        }
+        final long row = (long) Math.floor((latitude + 90) / cellSize);
+        final long column = (long) Math.floor((longitude + 180) / cellSize);
+        return Mono.fromFuture(cells.get(row * 1_000_000 + column, (cell, executor) -> loadCell(row, column).toFuture()))
+                .flatMapMany(bottles -> bottles.size() >= cellCapacity
+                        ? directMessageRepository.findReaching(latitude, longitude, radius, 0, limit)
+                        : Flux.fromStream(bottles.stream()
+                        .filter(bottle -> {
+                            final double distance = distance(latitude, longitude, bottle.getLatitude(), bottle.getLongitude());
+                            return distance <= radius && distance <= bottle.getReach();
+                        })
+                        .sorted(Comparator.comparingDouble(bottle -> distance(latitude, longitude, bottle.getLatitude(), bottle.getLongitude())))
+                        .limit(limit)));
+    }
+
+    private Mono<List<DirectMessage>> loadCell(long row, long column) {
+        final double half = cellSize / 2;
+        final double centerLatitude = row * cellSize - 90 + half;
+        final double centerLongitude = column * cellSize - 180 + half;
+        // the cell corner farthest from the center is on the side closer to the equator
+        final double halfDiagonal = Math.max(
+                distance(centerLatitude, centerLongitude, centerLatitude + half, centerLongitude + half),
+                distance(centerLatitude, centerLongitude, centerLatitude - half, centerLongitude + half));
+        return directMessageRepository.findReaching(centerLatitude, centerLongitude, halfDiagonal + maxCachedRadius, halfDiagonal, cellCapacity)
+                .collectList();
+    }
+
+    static double distance(double fromLatitude, double fromLongitude, double toLatitude, double toLongitude) {
+        final double latitudeDelta = Math.toRadians(toLatitude - fromLatitude);
+        final double longitudeDelta = Math.toRadians(toLongitude - fromLongitude);
+        final double a = Math.sin(latitudeDelta / 2) * Math.sin(latitudeDelta / 2)
+                + Math.cos(Math.toRadians(fromLatitude)) * Math.cos(Math.toRadians(toLatitude))
+                * Math.sin(longitudeDelta / 2) * Math.sin(longitudeDelta / 2);
+        return 2 * EARTH_RADIUS_METERS * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+}
+
+/**
+ * Inserts bottles in one unordered bulk write. Bottles already stored (same selector) count as
+ * duplicates instead of failing the batch, so a redelivered batch can simply be written again.
+ */
+@Component
+class DirectMessageBulkWriter {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final DirectMessageDerivedFields derivedFields;
+
+    public DirectMessageBulkWriter(ReactiveMongoTemplate mongoTemplate, DirectMessageDerivedFields derivedFields) {
+        this.mongoTemplate = mongoTemplate;
+        this.derivedFields = derivedFields;
+    }
+
+    /**
+     * Every bottle must carry its selector: the raw insert skips the mapping layer's id check, and the
+     * driver would store a bottle without one under an ObjectId that cannot be read back.
+     */
+    public Mono<BulkResult> insert(List<DirectMessage> messages) {
+        if (messages.isEmpty()) {
+            return Mono.just(new BulkResult(0, 0));
+        }
+        if (messages.stream().anyMatch(message -> message.getSelector() == null)) {
+            return Mono.error(new IllegalArgumentException("bottles must have a selector to be inserted"));
+        }
+        final List<org.bson.Document> documents = messages.stream()
+                .map(derivedFields::apply)
+                .map(message -> {
+                    final var document = new org.bson.Document();
+                    mongoTemplate.getConverter().write(message, document);
+                    return document;
+                })
+                .collect(Collectors.toList());
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(DirectMessage.class))
+                .flatMap(collection -> Mono.from(collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+                .map(result -> new BulkResult(documents.size(), 0))
+                .onErrorResume(MongoBulkWriteException.class, e -> {
+                    final boolean onlyDuplicates = e.getWriteErrors().stream().allMatch(error -> error.getCode() == DUPLICATE_KEY);
+                    if (!onlyDuplicates || e.getWriteConcernError() != null) {
+                        return Mono.error(e);
+                    }
+                    final int duplicates = e.getWriteErrors().size();
+                    return Mono.just(new BulkResult(documents.size() - duplicates, duplicates));
+                });
+    }
+}
+
+@Data
+@AllArgsConstructor
+class BulkResult {
+    private int inserted;
+    private int duplicates;
+}
+
+/**
+ * Outcome of one batch of a bulk import.
+ */
+@Data
+@AllArgsConstructor
+class ImportBatch {
+    private long batch;
+    private int received;
+    private int inserted;
+    private int duplicates;
+    private int rejected;
+}
+
+/**
+ * Consumer used when {@code direct.consumer.batch.enabled} is set. The bottles of incoming deliveries are
+ * gathered for up to {@code window} or {@code max-batch} bottles, written with one unordered insert, and a
+ * delivery is acked once all of its bottles are stored, which may take more than one batch. A delivery
+ * with a bottle in a failed batch goes back through {@link DeliveryRetry}. At most {@code max-in-flight}
+ * batches are written at once, and unacked deliveries are capped by the container prefetch, so a burst
+ * on the queue waits in the broker instead of piling up here; the prefetch counts deliveries, not
+ * bottles, so it should be at least {@code max-batch} for the size trigger to ever fire.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "direct.consumer.batch.enabled", havingValue = "true")
+class DirectMessageBatchListener {
+
+    static final String QUEUE = "direct-message-queue";
+
+    private final DirectMessageBulkWriter bulkWriter;
+    private final RecentSelectorFilter recentSelectors;
+    private final DeliveryRetry deliveryRetry;
+    private final int maxBatch;
+    private final Duration window;
+    private final int maxInFlight;
+    private FluxSink<PendingBottle> bottles;
+    private Disposable pipeline;
+
+    public DirectMessageBatchListener(DirectMessageBulkWriter bulkWriter, RecentSelectorFilter recentSelectors, DeliveryRetry deliveryRetry,
+                                      @Value("${direct.consumer.batch.max-batch:500}") int maxBatch,
+                                      @Value("${direct.consumer.batch.window:50ms}") Duration window,
+                                      @Value("${direct.consumer.batch.max-in-flight:4}") int maxInFlight) {
+        this.bulkWriter = bulkWriter;
+        this.recentSelectors = recentSelectors;
+        this.deliveryRetry = deliveryRetry;
+        this.maxBatch = maxBatch;
+        this.window = window;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @PostConstruct
+    void start() {
+        pipeline = Flux.<PendingBottle>create(sink -> bottles = sink)
+                .bufferTimeout(maxBatch, window)
+                // bufferTimeout cannot wait for demand; the backlog is still bounded by the prefetch
+                .onBackpressureBuffer()
+                .flatMap(this::write, maxInFlight)
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        bottles.complete();
+        pipeline.dispose();
+    }
+
+    @RabbitListener(queues = QUEUE, containerFactory = "batchContainerFactory")
+    public void readMessage(List<DirectMessage> messages, Message message, Channel channel,
+                            @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag) {
+        final List<DirectMessage> identified = messages.stream()
+                .filter(bottle -> bottle.getSelector() != null)
+                .collect(Collectors.toList());
+        if (identified.size() < messages.size()) {
+            // no retry can store them, so they are dropped rather than sent around again
+            log.warn("dropping " + (messages.size() - identified.size()) + " bottles without a selector from delivery " + deliveryTag);
+        }
+        final List<DirectMessage> fresh = identified.stream()
+                .filter(bottle -> !recentSelectors.seen(bottle.getSelector()))
+                .collect(Collectors.toList());
+        final Delivery delivery = new Delivery(message, channel, deliveryTag, fresh.size());
+        if (fresh.isEmpty()) {
+            // nothing left to store once the filter is done with it
+            delivery.settle(true);
+            return;
+        }
+        fresh.forEach(bottle -> bottles.next(new PendingBottle(bottle, delivery)));
+    }
+
+    private Mono<BulkResult> write(List<PendingBottle> batch) {
+        final List<DirectMessage> messages = batch.stream()
+                .map(PendingBottle::getMessage)
+                .collect(Collectors.toList());
+        return bulkWriter.insert(messages)
+                .doOnNext(result -> {
+                    messages.forEach(bottle -> recentSelectors.record(bottle.getSelector()));
+                    batch.forEach(bottle -> bottle.getDelivery().stored(true));
+                    log.debug("stored " + result.getInserted() + " bottles, " + result.getDuplicates() + " already present");
+                })
+                .onErrorResume(e -> {
+                    log.error("failed to store " + messages.size() + " bottles, retrying their deliveries", e);
+                    batch.forEach(bottle -> bottle.getDelivery().stored(false));
+                    return Mono.empty();
+                });
+    }
+
+    @Data
+    @AllArgsConstructor
+    static class PendingBottle {
+        private DirectMessage message;
+        private Delivery delivery;
+    }
+
+    class Delivery {
+        private final Message message;
+        private final Channel channel;
+        private final long deliveryTag;
+        private final AtomicInteger pending;
+        private volatile boolean failed;
+
+        Delivery(Message message, Channel channel, long deliveryTag, int bottles) {
+            this.message = message;
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+            this.pending = new AtomicInteger(bottles);
+        }
+
+        /**
+         * Counts one of the delivery's bottles as done, settling the delivery with its last one.
+         */
+        void stored(boolean stored) {
+            if (!stored) {
+                failed = true;
+            }
+            if (pending.decrementAndGet() == 0) {
+                settle(!failed);
+            }
+        }
+
+        void settle(boolean stored) {
+            // channels are not thread safe and batches complete on Mongo threads
+            synchronized (channel) {
+                try {
+                    if (stored || deliveryRetry.retryOrDeadLetter(QUEUE, message)) {
+                        channel.basicAck(deliveryTag, false);
+                    } else {
+                        channel.basicNack(deliveryTag, false, true);
+                    }
+                } catch (IOException e) {
+                    log.warn("could not settle delivery " + deliveryTag, e);
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Near-cache for single bottle lookups, bounded by {@code direct.cache.max-size} and
+ * {@code direct.cache.ttl}. Writers call {@link #evict} once a write is done; the selectors are
+ * broadcast on inabottle-exchange so every instance, this one included, drops its copy.
+ */
+@Component
+@Slf4j
+class DirectMessageCache {
+
+    static final String EVICT_ROUTING_KEY = "direct.cache.evict";
+
+    private final DirectMessageRepository directMessageRepository;
+    private final RabbitTemplate rabbitTemplate;
+    private final Cache<UUID, DirectMessage> messages;
+
+    public DirectMessageCache(DirectMessageRepository directMessageRepository, RabbitTemplate rabbitTemplate, MeterRegistry meterRegistry,
+                              @Value("${direct.cache.max-size:10000}") long maxSize,
+                              @Value("${direct.cache.ttl:30s}") Duration ttl) {
+        this.directMessageRepository = directMessageRepository;
+        this.rabbitTemplate = rabbitTemplate;
+        this.messages = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+        CaffeineCacheMetrics.monitor(meterRegistry, messages, "direct.messages");
+    }
+
+    public Mono<DirectMessage> findById(UUID selector) {
+        final DirectMessage cached = messages.getIfPresent(selector);
+        if (cached != null) {
+            return Mono.just(cached);
+        }
+        return directMessageRepository.findById(selector)
+                .doOnNext(message -> messages.put(selector, message));
+    }
+
+    public Mono<Void> evict(Collection<UUID> selectors) {
+        if (selectors.isEmpty()) {
+            return Mono.empty();
+        }
+        messages.invalidateAll(selectors);
+        return Mono.<Void>fromRunnable(() -> rabbitTemplate.convertAndSend("inabottle-exchange", EVICT_ROUTING_KEY, new ArrayList<>(selectors)))
+                .subscribeOn(Schedulers.boundedElastic())
+                .onErrorResume(e -> {
+                    // other instances fall back on the ttl
+                    log.warn("could not broadcast eviction of " + selectors.size() + " bottles", e);
+                    return Mono.empty();
+                });
+    }
+
+    @RabbitListener(queues = "#{cacheEvictQueue.name}")
+    public void readEviction(List<UUID> selectors) {
+        messages.invalidateAll(selectors);
+    }
 }
 
 @Service
+@ConditionalOnProperty(name = "direct.consumer.batch.enabled", havingValue = "false", matchIfMissing = true)
 class DirectMessageListener {
 
     private DirectMessageRepository directMessageRepository;
-    private ObjectMapper jsonObjectMapper;
+    private RecentSelectorFilter recentSelectors;
+    private DirectMessageCache directMessageCache;
 
-    public DirectMessageListener(DirectMessageRepository directMessageRepository, ObjectMapper jsonObjectMapper) {
+    public DirectMessageListener(DirectMessageRepository directMessageRepository, RecentSelectorFilter recentSelectors,
+                                 DirectMessageCache directMessageCache) {
         System.out.println("Criando consumer: ");
-        this.jsonObjectMapper = jsonObjectMapper;
         this.directMessageRepository = directMessageRepository;
+        this.recentSelectors = recentSelectors;
+        this.directMessageCache = directMessageCache;
     }
 
     @RabbitListener(queues = "direct-message-queue")
-    public void readMessage(List<Map<String, Object>> messages) {
-        final List<DirectMessage> teste =  messages.stream().map(map -> jsonObjectMapper.convertValue(map, DirectMessage.class)).collect(Collectors.toList());
-        final Disposable returno = directMessageRepository.saveAll(teste).subscribe();
+    public void readMessage(List<DirectMessage> messages) {
+        final List<DirectMessage> fresh = messages.stream()
+                .filter(message -> !recentSelectors.seen(message.getSelector()))
+                .collect(Collectors.toList());
+        final Disposable returno = directMessageRepository.saveAll(fresh)
+                .doOnNext(saved -> recentSelectors.record(saved.getSelector()))
+                .map(DirectMessage::getSelector)
+                .collectList()
+                .flatMap(directMessageCache::evict)
+                .subscribe();
     }
 }
 
 @RestController
 class DirectMessageController {
 
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final String NDJSON_VALUE = "application/x-ndjson";
+    // matches the hunt_created and created indexes, so hunts and createdAt ranges are read in index order
+    // without a sort stage
+    private static final Sort CREATED_ORDER = Sort.by("createdAt", "selector");
+
     private DirectMessageRepository directMessageRepository;
+    private ReactiveMongoTemplate mongoTemplate;
+    private BottleGrid bottleGrid;
+    private DirectMessageCache directMessageCache;
+    private DirectMessageBulkWriter bulkWriter;
+    private ObjectMapper jsonObjectMapper;
+    private int importBatchSize;
 
-    public DirectMessageController(DirectMessageRepository directMessageRepository) {
+    public DirectMessageController(DirectMessageRepository directMessageRepository, ReactiveMongoTemplate mongoTemplate,
+                                   BottleGrid bottleGrid, DirectMessageCache directMessageCache,
+                                   DirectMessageBulkWriter bulkWriter, ObjectMapper jsonObjectMapper,
+                                   @Value("${direct.import.batch-size:1000}") int importBatchSize) {
         this.directMessageRepository = directMessageRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.bottleGrid = bottleGrid;
+        this.directMessageCache = directMessageCache;
+        this.bulkWriter = bulkWriter;
+        this.jsonObjectMapper = jsonObjectMapper;
+        this.importBatchSize = importBatchSize;
     }
 
     @PostMapping("/direct")
     @ResponseStatus(HttpStatus.CREATED)
     public Mono<DirectMessage> addMessage(@RequestBody DirectMessage car) {
-        return directMessageRepository.save(car);
+        // a post may overwrite an existing bottle
+        return directMessageRepository.save(car)
+                .flatMap(saved -> directMessageCache.evict(List.of(saved.getSelector())).thenReturn(saved));
+    }
+
+    /**
+     * Imports one bottle per line. Lines are parsed as they arrive and written in unordered batches of
+     * {@code direct.import.batch-size}, one batch at a time, so the request body is only read as fast as
+     * Mongo takes it. Bottles already stored count as duplicates; lines that do not parse or have no
+     * selector are rejected and skipped.
+     */
+    @PostMapping(value = "/direct/import", consumes = {NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE},
+            produces = MediaType.APPLICATION_STREAM_JSON_VALUE)
+    public Flux<ImportBatch> importMessages(@RequestBody Flux<String> lines) {
+        return lines
+                .filter(line -> !line.isBlank())
+                .map(line -> {
+                    try {
+                        return Optional.of(jsonObjectMapper.readValue(line, DirectMessage.class));
+                    } catch (JsonProcessingException e) {
+                        return Optional.<DirectMessage>empty();
+                    }
+                })
+                .buffer(importBatchSize)
+                .index()
+                .concatMap(batch -> {
+                    final List<DirectMessage> parsed = batch.getT2().stream()
+                            .flatMap(Optional::stream)
+                            .filter(message -> message.getSelector() != null)
+                            .collect(Collectors.toList());
+                    final int rejected = batch.getT2().size() - parsed.size();
+                    return bulkWriter.insert(parsed)
+                            .map(result -> new ImportBatch(batch.getT1(), batch.getT2().size(), result.getInserted(), result.getDuplicates(), rejected));
+                });
     }
 
+    /**
+     * Every bottle, or with {@code since}, {@code until} or {@code after} one page of the bottles created
+     * in {@code [since, until)}, see {@link #createdAtPage}.
+     */
     @GetMapping("/direct")
-    public Flux<DirectMessage> getMessages() {
+    public Flux<DirectMessage> getMessages(@RequestParam(value = "since", required = false) Long since,
+                                           @RequestParam(value = "until", required = false) Long until,
+                                           @RequestParam(value = "after", required = false) Long after,
+                                           @RequestParam(value = "afterSelector", required = false) UUID afterSelector,
+                                           @RequestParam(value = "limit", defaultValue = "200") int limit) {
         System.out.println("ok");
-        return directMessageRepository.findAll();
+        if (since == null && until == null && after == null) {
+            return directMessageRepository.findAll();
+        }
+        return mongoTemplate.find(createdAtPage(since, until, after, afterSelector, limit), DirectMessage.class);
+    }
+
+    @GetMapping(value = "/direct", params = "view=marker")
+    public Flux<DirectMessageMarker> getMarkers(@RequestParam(value = "since", required = false) Long since,
+                                                @RequestParam(value = "until", required = false) Long until,
+                                                @RequestParam(value = "after", required = false) Long after,
+                                                @RequestParam(value = "afterSelector", required = false) UUID afterSelector,
+                                                @RequestParam(value = "limit", defaultValue = "200") int limit) {
+        if (since == null && until == null && after == null) {
+            return directMessageRepository.findAllBy();
+        }
+        return mongoTemplate.query(DirectMessage.class)
+                .as(DirectMessageMarker.class)
+                .matching(createdAtPage(since, until, after, afterSelector, limit))
+                .all();
+    }
+
+    @GetMapping(value = "/direct", params = "huntId")
+    public Flux<DirectMessage> getHuntMessages(@RequestParam("huntId") UUID huntId) {
+        return directMessageRepository.findByHuntId(huntId, CREATED_ORDER);
+    }
+
+    @GetMapping(value = "/direct", params = {"huntId", "view=marker"})
+    public Flux<DirectMessageMarker> getHuntMarkers(@RequestParam("huntId") UUID huntId) {
+        return directMessageRepository.findMarkersByHuntId(huntId, CREATED_ORDER);
+    }
+
+    @GetMapping("/direct/near")
+    public Flux<DirectMessage> getMessagesNear(@RequestParam("lat") double latitude,
+                                               @RequestParam("lon") double longitude,
+                                               @RequestParam("radius") double radius,
+                                               @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        return bottleGrid.findCovering(latitude, longitude, radius, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+    }
+
+    @GetMapping(value = "/direct/near", params = "view=marker")
+    public Flux<DirectMessageMarker> getMarkersNear(@RequestParam("lat") double latitude,
+                                                    @RequestParam("lon") double longitude,
+                                                    @RequestParam("radius") double radius,
+                                                    @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        // the grid already holds whole bottles, so only the response shrinks here
+        return getMessagesNear(latitude, longitude, radius, limit).map(DirectMessageMarker::of);
     }
 
     @GetMapping("/direct/{id}")
     public Mono<DirectMessage> getMessage(@PathVariable("id") UUID id) {
-        return directMessageRepository.findById(id);
+        return directMessageCache.findById(id);
+    }
+
+    @GetMapping(value = "/direct/{id}", params = "view=marker")
+    public Mono<DirectMessageMarker> getMarker(@PathVariable("id") UUID id) {
+        return directMessageRepository.findMarkerBySelector(id);
     }
 
     @DeleteMapping("/direct/{id}")
     public Mono<ResponseEntity<Void>> deleteMessage(@PathVariable("id") UUID id) {
         return directMessageRepository.findById(id)
                 .flatMap(car -> directMessageRepository.delete(car)
+                        .then(directMessageCache.evict(List.of(id)))
                         .then(Mono.just(new ResponseEntity<Void>(HttpStatus.OK)))
                 )
                 .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
     }
+
+    /**
+     * Oldest-first page of the bottles created in {@code [since, until)}, keyset-paginated on
+     * {@code (createdAt, selector)}: pass the {@code createdAt} and {@code selector} of the last bottle
+     * received as {@code after} and {@code afterSelector} to get the next page. Without a selector the
+     * cursor is {@code createdAt} alone, which skips bottles sharing the boundary timestamp.
+     */
+    private static Query createdAtPage(Long since, Long until, Long after, UUID afterSelector, int limit) {
+        final List<Criteria> bounds = new ArrayList<>();
+        if (since != null) {
+            bounds.add(where("createdAt").gte(since));
+        }
+        if (until != null) {
+            bounds.add(where("createdAt").lt(until));
+        }
+        if (after != null) {
+            bounds.add(afterSelector == null
+                    ? where("createdAt").gt(after)
+                    : new Criteria().orOperator(
+                            where("createdAt").gt(after),
+                            where("createdAt").is(after).and("selector").gt(afterSelector)));
+        }
+        return query(new Criteria().andOperator(bounds.toArray(new Criteria[0])))
+                .with(CREATED_ORDER)
+                .limit(Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+    }
 }
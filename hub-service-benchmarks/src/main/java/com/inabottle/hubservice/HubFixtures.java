@@ -0,0 +1,56 @@
+package com.inabottle.hubservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Hubs of a given chat length for the benchmarks; every tenth message carries a reaction.
+ */
+final class HubFixtures {
+
+    /**
+     * Comfortably below the 16MB document limit for fixture messages.
+     */
+    static final int MAX_EMBEDDED_MESSAGES = 50_000;
+    static final int BUCKET_SIZE = 1_000;
+    static final String REACTION_TYPE = "1";
+
+    private HubFixtures() {
+    }
+
+    static Hub hub(int messages) {
+        final List<HubMessage> chat = new ArrayList<>(messages);
+        for (int i = 0; i < messages; i++) {
+            chat.add(message(i));
+        }
+        return new Hub(UUID.randomUUID(), "bench@inabottle.com", 0L, null, 100.0, -30.03, -51.22, "received", "benchmark hub",
+                List.of("bench@inabottle.com"), chat, null, null);
+    }
+
+    static HubMessage message(long createdAt) {
+        final boolean reacted = createdAt % 10 == 0;
+        return new HubMessage(UUID.randomUUID(), "bench@inabottle.com", createdAt, null, 0, -30.03, -51.22, "received", null,
+                "message " + createdAt,
+                reacted ? List.of(new UserReaction("fan@inabottle.com", REACTION_TYPE, null)) : List.of(),
+                reacted ? Map.of(REACTION_TYPE, 1) : Map.of());
+    }
+
+    /**
+     * Moves everything beyond {@link #MAX_EMBEDDED_MESSAGES} out of the hub into archive buckets, oldest
+     * first, the way the archive tier keeps large hubs under the document size limit.
+     */
+    static List<HubMessageBucket> archiveOverflow(Hub hub) {
+        final List<HubMessage> chat = hub.getMessageChat();
+        final int archived = Math.max(0, chat.size() - MAX_EMBEDDED_MESSAGES);
+        final List<HubMessageBucket> buckets = new ArrayList<>();
+        for (int from = 0; from < archived; from += BUCKET_SIZE) {
+            final List<HubMessage> messages = List.copyOf(chat.subList(from, Math.min(from + BUCKET_SIZE, archived)));
+            buckets.add(new HubMessageBucket(hub.getSelector() + ":" + messages.get(0).getSelector(), hub.getSelector(),
+                    messages.get(0).getCreatedAt(), messages.get(messages.size() - 1).getCreatedAt(), messages));
+        }
+        hub.setMessageChat(List.copyOf(chat.subList(archived, chat.size())));
+        return buckets;
+    }
+}
@@ -0,0 +1,65 @@
+package com.inabottle.hubservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning a whole hub into JSON for the API and into a Mongo document for storage, and back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HubSerializationBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int messages;
+
+    private ObjectMapper objectMapper;
+    private MappingMongoConverter mongoConverter;
+    private Hub hub;
+    private byte[] json;
+    private Document document;
+
+    @Setup
+    public void setUp() throws IOException {
+        objectMapper = Jackson2ObjectMapperBuilder.json().build();
+        mongoConverter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, new MongoMappingContext());
+        mongoConverter.afterPropertiesSet();
+        hub = HubFixtures.hub(messages);
+        json = objectMapper.writeValueAsBytes(hub);
+        document = writeDocument();
+    }
+
+    @Benchmark
+    public byte[] writeJson() throws IOException {
+        return objectMapper.writeValueAsBytes(hub);
+    }
+
+    @Benchmark
+    public Hub readJson() throws IOException {
+        return objectMapper.readValue(json, Hub.class);
+    }
+
+    @Benchmark
+    public Document writeDocument() {
+        final Document target = new Document();
+        mongoConverter.write(hub, target);
+        return target;
+    }
+
+    @Benchmark
+    public Hub readDocument() {
+        return mongoConverter.read(Hub.class, document);
+    }
+}
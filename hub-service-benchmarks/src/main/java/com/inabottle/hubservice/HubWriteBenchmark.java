@@ -0,0 +1,101 @@
+package com.inabottle.hubservice;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.MongodStarter;
+import de.flapdoodle.embed.mongo.config.IMongodConfig;
+import de.flapdoodle.embed.mongo.config.MongodConfigBuilder;
+import de.flapdoodle.embed.mongo.config.Net;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.process.runtime.Network;
+import org.bson.UuidRepresentation;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the chat write paths against an embedded Mongo, as the hub grows. The hub is re-seeded
+ * before every iteration so appends do not drift the chat length away from {@link #messages}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HubWriteBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int messages;
+
+    private MongodExecutable mongod;
+    private MongoClient mongoClient;
+    private ReactiveMongoTemplate mongoTemplate;
+    private HubMessageStore hubMessageStore;
+    private UUID hubId;
+    private UUID reactedMessageId;
+    private long nextCreatedAt;
+
+    @Setup(Level.Trial)
+    public void startMongo() throws IOException {
+        final int port = Network.getFreeServerPort();
+        final IMongodConfig config = new MongodConfigBuilder()
+                .version(Version.Main.PRODUCTION)
+                .net(new Net(port, Network.localhostIsIPv6()))
+                .build();
+        mongod = MongodStarter.getDefaultInstance().prepare(config);
+        mongod.start();
+        mongoClient = MongoClients.create(MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString("mongodb://localhost:" + port))
+                .uuidRepresentation(UuidRepresentation.JAVA_LEGACY)
+                .build());
+        mongoTemplate = new ReactiveMongoTemplate(mongoClient, "hub-benchmarks");
+        final HubEventBroker hubEventBroker = new HubEventBroker(mongoTemplate, DataSize.ofMegabytes(16), Duration.ofSeconds(5));
+        hubEventBroker.createLog();
+        hubMessageStore = new HubMessageStore(mongoTemplate, hubEventBroker, new HubArchive(mongoTemplate, false, 0, HubFixtures.BUCKET_SIZE));
+    }
+
+    @Setup(Level.Iteration)
+    public void seedHub() {
+        mongoTemplate.dropCollection(Hub.class)
+                .then(mongoTemplate.dropCollection(HubMessageBucket.class))
+                .block();
+        final Hub hub = HubFixtures.hub(messages);
+        final List<HubMessageBucket> buckets = HubFixtures.archiveOverflow(hub);
+        mongoTemplate.insert(hub).block();
+        mongoTemplate.insertAll(buckets).then().block();
+        hubId = hub.getSelector();
+        reactedMessageId = hub.getMessageChat().get(hub.getMessageChat().size() / 2).getSelector();
+        nextCreatedAt = messages;
+    }
+
+    @TearDown(Level.Trial)
+    public void stopMongo() {
+        mongoClient.close();
+        mongod.stop();
+    }
+
+    @Benchmark
+    public Boolean appendMessage() {
+        return hubMessageStore.apply(HubEvent.message(hubId, HubFixtures.message(nextCreatedAt++))).block();
+    }
+
+    /**
+     * Add and remove as a pair, so the reacted message stays the same size across invocations.
+     */
+    @Benchmark
+    public Boolean addAndRemoveReaction() {
+        final UserReaction reaction = new UserReaction("bench@inabottle.com", HubFixtures.REACTION_TYPE, null);
+        hubMessageStore.apply(HubEvent.reaction(HubEvent.REACTION_ADDED, hubId, reactedMessageId, reaction)).block();
+        return hubMessageStore.apply(HubEvent.reaction(HubEvent.REACTION_REMOVED, hubId, reactedMessageId, reaction)).block();
+    }
+}
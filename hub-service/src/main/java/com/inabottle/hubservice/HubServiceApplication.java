@@ -1,27 +1,88 @@
 package com.inabottle.hubservice;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.bson.types.ObjectId;
+import org.reactivestreams.Publisher;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.context.annotation.Bean;
+import org.springframework.dao.OptimisticLockingFailureException;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.CollectionOptions;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.aggregation.TypedAggregation;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
+import org.springframework.data.mongodb.core.convert.UpdateMapper;
+import org.springframework.data.mongodb.core.geo.GeoJsonPoint;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.GeoSpatialIndexType;
+import org.springframework.data.mongodb.core.index.GeoSpatialIndexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.event.ReactiveBeforeConvertCallback;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.DirectProcessor;
 import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.LongSummaryStatistics;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.limit;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.project;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.replaceRoot;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.sort;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.unwind;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 @EnableEurekaClient
 @EnableDiscoveryClient
@@ -29,23 +90,26 @@ import java.util.UUID;
 @Slf4j
 class HubServiceApplication {
 
+    private static final int BACKFILL_CONCURRENCY = 8;
+
     public static void main(String[] args) {
         SpringApplication.run(HubServiceApplication.class, args);
     }
 
     @Bean
-    ApplicationRunner init(DirectMessageRepository repository) {
+    ApplicationRunner init(DirectMessageRepository repository, TypeReactionRepository typeReactionRepository) {
         // Electric VWs from https://www.vw.com/electric-concepts/
         // Release dates from https://www.motor1.com/features/346407/volkswagen-id-price-on-sale/
-        Hub ID = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "blu"), null);
-        Hub ID2 = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "ble"), null);
-        Hub ID3 = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "blo"), null);
+        Hub ID = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "blu"), List.of(), null, null);
+        Hub ID2 = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "ble"), List.of(), null, null);
+        Hub ID3 = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "blo"), List.of(), null, null);
         Hub ID4 = new Hub(UUID.randomUUID(), "rafaelcorbel@g.com", 1605532776910L, "abc", 15.0, 16.9, 1.0, "1", "bla", List.of("blu", "bli"),
-                List.of(new HubMessage(UUID.randomUUID(), "rc@g.com", 1605793876475L, null, 0, 0, 0, "received", null, "ad", List.of(new UserReaction("r@g", new TypeReaction("1", "2", "3"))))));
+                List.of(new HubMessage(UUID.randomUUID(), "rc@g.com", 1605793876475L, null, 0, 0, 0, "received", null, "ad", List.of(new UserReaction("r@g", "1", null)), Map.of("1", 1))), null, null);
 
         Set<Hub> vwConcepts = Set.of(ID, ID2, ID3, ID4);
 
         return args -> {
+            typeReactionRepository.save(new TypeReaction("1", "2", "3")).subscribe();
             repository
                     .deleteAll()
                     .thenMany(
@@ -57,6 +121,79 @@ class HubServiceApplication {
                     .subscribe(car -> log.info("saving " + car.toString()));
         };
     }
+
+    @Bean
+    ApplicationRunner backfillHubVersions(ReactiveMongoTemplate mongoTemplate) {
+        // hubs written before versioning would otherwise be re-inserted instead of updated
+        return args -> mongoTemplate.updateMulti(query(where("version").exists(false)), new Update().set("version", 0L), Hub.class)
+                .subscribe(result -> log.info("versioned " + result.getModifiedCount() + " hubs"));
+    }
+
+    @Bean
+    ApplicationRunner backfillReactionTypes(ReactiveMongoTemplate mongoTemplate, HubWriteRetry hubWriteRetry) {
+        // reactions stored before the catalog embed their whole type and have no type selector, which left
+        // them unreadable and impossible to remove
+        return args -> mongoTemplate.find(query(where("messageChat.reactions").elemMatch(where("type").exists(false))), org.bson.Document.class, mongoTemplate.getCollectionName(Hub.class))
+                .flatMap(hub -> hubWriteRetry.withRetry(Mono.defer(() -> referenceReactionTypes(mongoTemplate, hub.get("_id")))), BACKFILL_CONCURRENCY)
+                .reduce(0L, Long::sum)
+                .subscribe(migrated -> log.info("referenced reaction types in " + migrated + " hubs"));
+    }
+
+    /**
+     * Rewrites the chat of one hub with every legacy reaction reduced to its type selector and the per-type
+     * counters recounted from the reactions, guarded by the hub version so a concurrent write wins.
+     */
+    private static Mono<Long> referenceReactionTypes(ReactiveMongoTemplate mongoTemplate, Object hubId) {
+        final String collection = mongoTemplate.getCollectionName(Hub.class);
+        return mongoTemplate.findOne(query(where("_id").is(hubId)), org.bson.Document.class, collection)
+                .flatMap(hub -> {
+                    final List<org.bson.Document> chat = hub.getList("messageChat", org.bson.Document.class, List.of());
+                    chat.forEach(HubServiceApplication::referenceLegacyReactions);
+                    final Query unchanged = query(where("_id").is(hubId).and("version").is(hub.get("version")));
+                    return mongoTemplate.updateFirst(unchanged, new Update().set("messageChat", chat).inc("version", 1), collection);
+                })
+                .flatMap(result -> result.getModifiedCount() > 0
+                        ? Mono.just(1L)
+                        : Mono.error(new OptimisticLockingFailureException("hub " + hubId + " changed while migrating its reactions")))
+                .defaultIfEmpty(0L);
+    }
+
+    private static void referenceLegacyReactions(org.bson.Document message) {
+        final List<org.bson.Document> reactions = new ArrayList<>();
+        for (org.bson.Document reaction : message.getList("reactions", org.bson.Document.class, List.of())) {
+            final org.bson.Document legacyType = reaction.get("reaction", org.bson.Document.class);
+            if (reaction.getString("type") == null && legacyType != null && legacyType.get("selector") != null) {
+                reaction.put("type", String.valueOf(legacyType.get("selector")));
+            }
+            reaction.remove("reaction");
+            // a reaction without any type can neither be counted nor removed
+            if (reaction.getString("type") != null) {
+                reactions.add(reaction);
+            }
+        }
+        final org.bson.Document reactionCount = new org.bson.Document();
+        reactions.forEach(reaction -> reactionCount.merge(reaction.getString("type"), 1, (count, one) -> (Integer) count + 1));
+        message.put("reactions", reactions);
+        message.put("reactionCount", reactionCount);
+    }
+
+    @Bean
+    ApplicationRunner backfillHubLocations(ReactiveMongoTemplate mongoTemplate) {
+        // hubs saved before the geo index have no location and would never show up near anyone
+        return args -> {
+            final Query missing = query(where("location").exists(false));
+            missing.fields().include("latitude").include("longitude");
+            mongoTemplate.find(missing, Hub.class)
+                    // only set while the position read is still current, a concurrent save locates the hub itself
+                    .flatMap(hub -> mongoTemplate.updateFirst(
+                            query(where("_id").is(hub.getSelector()).and("location").exists(false)
+                                    .and("latitude").is(hub.getLatitude()).and("longitude").is(hub.getLongitude())),
+                            new Update().set("location", new GeoJsonPoint(hub.getLongitude(), hub.getLatitude())),
+                            Hub.class), BACKFILL_CONCURRENCY)
+                    .reduce(0L, (located, result) -> located + result.getModifiedCount())
+                    .subscribe(located -> log.info("located " + located + " hubs"));
+        };
+    }
 }
 
 @Document
@@ -76,6 +213,12 @@ class Hub {
     private String title;
     private List<String> admin;
     private List<HubMessage> messageChat = List.of();
+    @JsonIgnore
+    @GeoSpatialIndexed(type = GeoSpatialIndexType.GEO_2DSPHERE)
+    private GeoJsonPoint location;
+    @JsonIgnore
+    @Version
+    private Long version;
 }
 
 
@@ -96,6 +239,7 @@ class HubMessage {
     private String title;
     private String text;
     private List<UserReaction> reactions = List.of();
+    private Map<String, Integer> reactionCount = Map.of();
 }
 
 
@@ -105,6 +249,14 @@ class HubMessage {
 @AllArgsConstructor
 class UserReaction {
     private String createdBy;
+    /**
+     * Selector of the reaction type, the only part of it stored with the reaction.
+     */
+    private String type;
+    /**
+     * Resolved from {@link ReactionCatalog} when the reaction is read back.
+     */
+    @Transient
     private TypeReaction reaction;
 }
 
@@ -113,26 +265,972 @@ class UserReaction {
 @NoArgsConstructor
 @AllArgsConstructor
 class TypeReaction {
+    @Id
     private String selector;
     private String url;
     private String urlPreview;
 }
 
+/**
+ * Hub without its chat and password, for listings that must not grow with the conversation.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class HubSummary {
+    @Id
+    private UUID selector;
+    private String createdBy;
+    private Long createdAt;
+    private double reach;
+    private double latitude;
+    private double longitude;
+    private String status;
+    private String title;
+    private List<String> admin;
+}
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class HubEvent {
+    static final String MESSAGE = "message";
+    static final String REACTION_ADDED = "reactionAdded";
+    static final String REACTION_REMOVED = "reactionRemoved";
+
+    private String type;
+    private UUID hubId;
+    private UUID messageId;
+    private HubMessage message;
+    private UserReaction reaction;
+
+    static HubEvent message(UUID hubId, HubMessage message) {
+        return new HubEvent(MESSAGE, hubId, message.getSelector(), message, null);
+    }
+
+    static HubEvent reaction(String type, UUID hubId, UUID messageId, UserReaction reaction) {
+        return new HubEvent(type, hubId, messageId, null, reaction);
+    }
+}
+
 interface DirectMessageRepository extends ReactiveMongoRepository<Hub, UUID> {
+
+    Flux<HubSummary> findAllBy();
+
+    Mono<HubSummary> findSummaryBySelector(UUID selector);
+
+    /**
+     * Hubs within {@code radius} meters whose own reach (also in meters) covers the given position,
+     * nearest first.
+     */
+    @Aggregation(pipeline = {
+            "{ $geoNear: { near: { type: 'Point', coordinates: [ ?1, ?0 ] }, distanceField: 'distance', maxDistance: ?2, spherical: true } }",
+            "{ $match: { $expr: { $lte: [ '$distance', '$reach' ] } } }",
+            "{ $limit: ?3 }",
+            "{ $project: { messageChat: 0, password: 0 } }"
+    })
+    Flux<HubSummary> findCovering(double latitude, double longitude, double radius, int limit);
+}
+
+interface TypeReactionRepository extends ReactiveMongoRepository<TypeReaction, String> {
+}
+
+/**
+ * In-memory catalog of reaction types. Reactions are stored with just their type selector and get
+ * the shared {@link TypeReaction} instance attached when read, instead of every reaction embedding
+ * its own copy of the urls. Types are loaded at startup; unknown ones are looked up on first use, so
+ * types registered on another instance are found too. Types are only registered through
+ * {@link #save(TypeReaction)}; a reaction naming a type that is not in the catalog is rejected.
+ */
+@Component
+class ReactionCatalog {
+
+    private final TypeReactionRepository typeReactionRepository;
+    private final Map<String, TypeReaction> types = new ConcurrentHashMap<>();
+
+    public ReactionCatalog(TypeReactionRepository typeReactionRepository) {
+        this.typeReactionRepository = typeReactionRepository;
+    }
+
+    @PostConstruct
+    void load() {
+        typeReactionRepository.findAll().subscribe(this::cache);
+    }
+
+    public Collection<TypeReaction> getTypes() {
+        return types.values();
+    }
+
+    /**
+     * Registers the type. Its selector becomes a key of the per-message {@code reactionCount}, so it may
+     * not contain a dot or start with a dollar sign.
+     */
+    public Mono<TypeReaction> save(TypeReaction type) {
+        final String selector = type.getSelector();
+        if (selector == null || selector.isBlank() || selector.contains(".") || selector.startsWith("$")) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid reaction type selector " + selector));
+        }
+        return typeReactionRepository.save(type).doOnNext(this::cache);
+    }
+
+    /**
+     * Reduces the reaction to a reference to its type, which must already be in the catalog.
+     */
+    public Mono<UserReaction> compact(UserReaction reaction) {
+        final TypeReaction type = reaction.getReaction();
+        if (type != null && type.getSelector() != null) {
+            reaction.setType(type.getSelector());
+        }
+        if (reaction.getType() == null) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "reaction without a type"));
+        }
+        return find(reaction.getType())
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "unknown reaction type " + reaction.getType())))
+                .map(known -> {
+                    reaction.setReaction(known);
+                    return reaction;
+                });
+    }
+
+    public Mono<Hub> hydrate(Hub hub) {
+        return hydrate(hub.getMessageChat()).thenReturn(hub);
+    }
+
+    public Mono<Void> hydrate(Collection<HubMessage> messages) {
+        final List<UserReaction> reactions = messages.stream()
+                .filter(message -> message.getReactions() != null)
+                .flatMap(message -> message.getReactions().stream())
+                .collect(Collectors.toList());
+        final Set<String> missing = reactions.stream()
+                .map(UserReaction::getType)
+                .filter(type -> type != null && !types.containsKey(type))
+                .collect(Collectors.toSet());
+        final Mono<Void> resolved = missing.isEmpty() ? Mono.empty() : typeReactionRepository.findAllById(missing).doOnNext(this::cache).then();
+        return resolved.then(Mono.fromRunnable(() -> reactions.forEach(reaction -> reaction.setReaction(reaction.getType() == null ? null : types.get(reaction.getType())))));
+    }
+
+    private Mono<TypeReaction> find(String selector) {
+        final TypeReaction cached = types.get(selector);
+        return cached != null ? Mono.just(cached) : typeReactionRepository.findById(selector).doOnNext(this::cache);
+    }
+
+    private void cache(TypeReaction type) {
+        types.put(type.getSelector(), type);
+    }
+}
+
+/**
+ * Keeps the indexed GeoJSON location in step with latitude/longitude on every save.
+ */
+@Component
+class HubLocationCallback implements ReactiveBeforeConvertCallback<Hub> {
+
+    @Override
+    public Publisher<Hub> onBeforeConvert(Hub hub, String collection) {
+        hub.setLocation(new GeoJsonPoint(hub.getLongitude(), hub.getLatitude()));
+        return Mono.just(hub);
+    }
+}
+
+/**
+ * Bounded, jittered retry for version-checked hub writes. The write passed in is re-subscribed on each
+ * attempt, so it must re-read the hub it saves.
+ */
+@Component
+class HubWriteRetry {
+
+    private final Counter conflicts;
+    private final Counter retries;
+    private final Retry retry;
+
+    public HubWriteRetry(MeterRegistry meterRegistry,
+                         @Value("${hub.write.max-retries:5}") int maxRetries,
+                         @Value("${hub.write.retry-backoff:10ms}") Duration retryBackoff) {
+        this.conflicts = meterRegistry.counter("hub.write.conflicts");
+        this.retries = meterRegistry.counter("hub.write.retries");
+        this.retry = Retry.backoff(maxRetries, retryBackoff)
+                .jitter(0.5)
+                .filter(OptimisticLockingFailureException.class::isInstance)
+                .doBeforeRetry(signal -> retries.increment())
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    public <T> Mono<T> withRetry(Mono<T> write) {
+        return write
+                .doOnError(OptimisticLockingFailureException.class, conflict -> conflicts.increment())
+                .retryWhen(retry);
+    }
+}
+
+/**
+ * Chat event as recorded in the capped {@code hubEvent} collection, the log every instance tails.
+ */
+@Document("hubEvent")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class HubEventRecord {
+    @Id
+    private ObjectId id;
+    private UUID hubId;
+    private HubEvent event;
+
+    static HubEventRecord of(HubEvent event) {
+        return new HubEventRecord(null, event.getHubId(), event);
+    }
+}
+
+/**
+ * Per-hub fan-out of chat events. Writes are appended to a capped collection, so a write handled by any
+ * instance reaches the subscribers of every instance. Each instance keeps a single tailable cursor on the
+ * whole log and routes every record to the local subscribers of its hub, so the log is read once per
+ * instance however many hubs are watched. Slow subscribers lose their oldest pending events instead of
+ * holding back the others.
+ * <p>
+ * Record ids are generated by the writers, so ids from instances whose clocks disagree are not in log
+ * order. A reopened cursor therefore starts {@code hub.events.clock-skew} before the last record seen and
+ * skips the records it already delivered.
+ */
+@Component
+@Slf4j
+class HubEventBroker {
+
+    private static final int SUBSCRIBER_BUFFER = 256;
+    private static final int SEEN_CAPACITY = 65_536;
+    private static final Duration REOPEN_DELAY = Duration.ofMillis(100);
+    private static final Duration MAX_REOPEN_BACKOFF = Duration.ofSeconds(5);
+    private static final Duration CREATE_TIMEOUT = Duration.ofSeconds(10);
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final DataSize logSize;
+    private final Duration clockSkew;
+    private final Map<UUID, HubChannel> channels = new ConcurrentHashMap<>();
+    private final Map<ObjectId, Boolean> seen = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ObjectId, Boolean> eldest) {
+            return size() > SEEN_CAPACITY;
+        }
+    };
+    private ObjectId last;
+    private Disposable upstream;
+
+    public HubEventBroker(ReactiveMongoTemplate mongoTemplate,
+                          @Value("${hub.events.log-size:16MB}") DataSize logSize,
+                          @Value("${hub.events.clock-skew:5s}") Duration clockSkew) {
+        this.mongoTemplate = mongoTemplate;
+        this.logSize = logSize;
+        this.clockSkew = clockSkew;
+    }
+
+    @PostConstruct
+    void start() {
+        createLog();
+        upstream = skipExisting()
+                .thenMany(tail())
+                .subscribe(this::route);
+    }
+
+    @PreDestroy
+    void stop() {
+        upstream.dispose();
+    }
+
+    /**
+     * Creates the capped log before anything is written to it; a plain collection created by the first
+     * insert could not be tailed.
+     */
+    void createLog() {
+        mongoTemplate.collectionExists(HubEventRecord.class)
+                .filter(exists -> !exists)
+                .flatMap(missing -> mongoTemplate.createCollection(HubEventRecord.class, CollectionOptions.empty().capped().size(logSize.toBytes())))
+                // another instance may have created it meanwhile
+                .onErrorResume(error -> {
+                    log.warn("could not create the hub event log", error);
+                    return Mono.empty();
+                })
+                .block(CREATE_TIMEOUT);
+    }
+
+    public Flux<HubEvent> subscribe(UUID hubId) {
+        return Flux.defer(() -> {
+            final HubChannel channel = channels.compute(hubId, (id, current) -> {
+                final HubChannel joined = current == null ? new HubChannel() : current;
+                joined.subscribers++;
+                return joined;
+            });
+            return channel.processor
+                    .onBackpressureBuffer(SUBSCRIBER_BUFFER, dropped -> log.debug("dropping event for slow subscriber of hub " + hubId), BufferOverflowStrategy.DROP_OLDEST)
+                    .doFinally(signal -> channels.computeIfPresent(hubId, (id, current) -> --current.subscribers > 0 ? current : null));
+        });
+    }
+
+    /**
+     * Appends the events to the log. The writes they describe are already done, so a failure is only
+     * logged: subscribers miss the events but the caller's write stands.
+     */
+    public Mono<Void> publish(List<HubEvent> events) {
+        return mongoTemplate.insertAll(events.stream().map(HubEventRecord::of).collect(Collectors.toList()))
+                .then()
+                .onErrorResume(error -> {
+                    log.warn("failed to publish " + events.size() + " events", error);
+                    return Mono.empty();
+                });
+    }
+
+    /**
+     * Takes the newest record of the log, in insertion order, as the starting point, and marks the
+     * records within the skew before it as seen, so the first cursor only delivers what comes after.
+     */
+    private Mono<Void> skipExisting() {
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(HubEventRecord.class))
+                .flatMap(collection -> Mono.from(collection.find()
+                        .sort(new org.bson.Document("$natural", -1))
+                        .projection(new org.bson.Document("_id", 1))
+                        .first()))
+                .flatMapMany(newest -> {
+                    synchronized (seen) {
+                        last = newest.getObjectId("_id");
+                    }
+                    return mongoTemplate.find(query(resumePoint()), HubEventRecord.class);
+                })
+                .doOnNext(record -> markSeen(record.getId()))
+                .then();
+    }
+
+    /**
+     * Every record of the log from the starting point on. The resume point always matches the last record
+     * seen, so the cursor stays open while the log is quiet; it only dies on an empty log or when the log
+     * wraps past its position, and is then reopened from the last record seen.
+     */
+    private Flux<HubEventRecord> tail() {
+        return Flux.defer(() -> mongoTemplate.tail(query(resumePoint()), HubEventRecord.class))
+                .filter(record -> markSeen(record.getId()))
+                .repeatWhen(completed -> completed.delayElements(REOPEN_DELAY))
+                .retryWhen(Retry.backoff(Long.MAX_VALUE, REOPEN_DELAY)
+                        .maxBackoff(MAX_REOPEN_BACKOFF)
+                        .doBeforeRetry(signal -> log.debug("reopening the hub event log", signal.failure())));
+    }
+
+    private Criteria resumePoint() {
+        synchronized (seen) {
+            if (last == null) {
+                return new Criteria();
+            }
+            final long from = Math.max(0, last.getTimestamp() - clockSkew.getSeconds());
+            return where("_id").gte(new ObjectId(String.format("%08x%016x", from, 0)));
+        }
+    }
+
+    /**
+     * @return whether the record was not seen before
+     */
+    private boolean markSeen(ObjectId id) {
+        synchronized (seen) {
+            if (seen.put(id, Boolean.TRUE) != null) {
+                return false;
+            }
+            last = id;
+            return true;
+        }
+    }
+
+    private void route(HubEventRecord record) {
+        final HubChannel channel = channels.get(record.getHubId());
+        if (channel != null) {
+            channel.sink.next(record.getEvent());
+        }
+    }
+
+    private static class HubChannel {
+        private final DirectProcessor<HubEvent> processor = DirectProcessor.create();
+        private final FluxSink<HubEvent> sink = processor.sink();
+        private int subscribers;
+    }
+}
+
+/**
+ * Fixed-size, time-ordered bucket of messages rolled out of a hub's embedded chat.
+ */
+@Document
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@CompoundIndex(name = "hub_newest_first", def = "{'hubId': 1, 'lastCreatedAt': -1}")
+class HubMessageBucket {
+    /**
+     * Hub id and selectors of the bucket's first and last message, so a retried roll-over rewrites the same
+     * bucket while a later one, starting from a message that was left embedded, does not.
+     */
+    @Id
+    private String id;
+    private UUID hubId;
+    private Long firstCreatedAt;
+    private Long lastCreatedAt;
+    private List<HubMessage> messages = List.of();
+}
+
+/**
+ * Archive tier for long chats. When enabled, a hub keeps at least its {@code keep} most recent messages
+ * embedded; once {@code bucket-size} more have piled up, the oldest {@code bucket-size} are moved into a
+ * {@link HubMessageBucket}, one bucket at a time. Paging back past the embedded chat reads buckets
+ * newest first, only as far as the page needs.
+ * <p>
+ * A message is only pulled from the hub while it still equals the copy in the bucket. One that got a
+ * reaction while being moved is copied again and the pull retried; past {@code MAX_PULL_ATTEMPTS} it
+ * stays embedded and leaves the bucket. Reactions to messages already archived are applied to their
+ * bucket.
+ */
+@Component
+@Slf4j
+class HubArchive {
+
+    private static final int MAX_PULL_ATTEMPTS = 5;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final QueryMapper queryMapper;
+    private final UpdateMapper updateMapper;
+    private final boolean enabled;
+    private final int keep;
+    private final int bucketSize;
+    private final Set<UUID> rolling = ConcurrentHashMap.newKeySet();
+
+    public HubArchive(ReactiveMongoTemplate mongoTemplate,
+                      @Value("${hub.archive.enabled:false}") boolean enabled,
+                      @Value("${hub.archive.keep:500}") int keep,
+                      @Value("${hub.archive.bucket-size:200}") int bucketSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.queryMapper = new QueryMapper(mongoTemplate.getConverter());
+        this.updateMapper = new UpdateMapper(mongoTemplate.getConverter());
+        this.enabled = enabled;
+        this.keep = keep;
+        this.bucketSize = bucketSize;
+    }
+
+    public void onAppended(UUID hubId) {
+        if (!enabled || !rolling.add(hubId)) {
+            return;
+        }
+        rollOver(hubId)
+                .doFinally(signal -> rolling.remove(hubId))
+                .subscribe(null, error -> log.warn("failed to archive messages of hub " + hubId, error));
+    }
+
+    /**
+     * Archived messages past the {@code (before, beforeSelector)} cursor, newest first. Only the newest
+     * buckets that can hold the page are unwound.
+     */
+    public Flux<HubMessage> findMessagesBefore(UUID hubId, long before, UUID beforeSelector, int limit) {
+        final TypedAggregation<HubMessageBucket> aggregation = newAggregation(HubMessageBucket.class,
+                match(where("hubId").is(hubId).and("firstCreatedAt").lte(before)),
+                sort(Sort.Direction.DESC, "lastCreatedAt"),
+                limit(limit / bucketSize + 2),
+                unwind("messages"),
+                match(HubMessageStore.olderThan("messages", before, beforeSelector)),
+                sort(Sort.Direction.DESC, "messages.createdAt", "messages.selector"),
+                limit(limit),
+                replaceRoot("messages"));
+        return mongoTemplate.aggregate(aggregation, HubMessage.class);
+    }
+
+    /**
+     * Applies a reaction change to the archived copy of its message, under the same conditions as
+     * {@link HubMessageStore#apply(HubEvent)} applies it to the embedded one.
+     *
+     * @return {@code true} when the mutation changed a bucket
+     */
+    public Mono<Boolean> apply(HubEvent reaction) {
+        return mongoTemplate.updateFirst(HubMessageStore.reactionQuery(where("hubId").is(reaction.getHubId()), "messages", reaction),
+                        HubMessageStore.reactionUpdate("messages", reaction), HubMessageBucket.class)
+                .map(result -> result.getModifiedCount() > 0);
+    }
+
+    /**
+     * Applies reaction changes to archived messages in one ordered bulk write. Changes to messages that
+     * are not archived match nothing.
+     */
+    public Mono<Void> applyAll(List<HubEvent> reactions) {
+        if (reactions.isEmpty()) {
+            return Mono.empty();
+        }
+        final MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext().getRequiredPersistentEntity(HubMessageBucket.class);
+        final List<WriteModel<org.bson.Document>> writes = reactions.stream()
+                .map(reaction -> new UpdateOneModel<org.bson.Document>(
+                        queryMapper.getMappedObject(HubMessageStore.reactionQuery(where("hubId").is(reaction.getHubId()), "messages", reaction).getQueryObject(), entity),
+                        updateMapper.getMappedObject(HubMessageStore.reactionUpdate("messages", reaction).getUpdateObject(), entity)))
+                .collect(Collectors.toList());
+        return mongoTemplate.execute(HubMessageBucket.class, collection -> collection.bulkWrite(writes)).then();
+    }
+
+    public Mono<Boolean> hasMessage(UUID hubId, UUID messageId) {
+        return mongoTemplate.exists(query(where("hubId").is(hubId).and("messages.selector").is(messageId)), HubMessageBucket.class);
+    }
+
+    private Mono<Void> rollOver(UUID hubId) {
+        return chatSize(hubId)
+                .filter(size -> size >= keep + bucketSize)
+                .flatMap(size -> oldestMessages(hubId))
+                .flatMap(oldest -> archive(hubId, oldest))
+                .filter(archived -> archived)
+                // a hub that grew far past the limit, e.g. when the archive was just enabled, drains bucket by bucket
+                .flatMap(archived -> rollOver(hubId));
+    }
+
+    private Mono<Integer> chatSize(UUID hubId) {
+        final TypedAggregation<Hub> aggregation = newAggregation(Hub.class,
+                match(where("_id").is(hubId)),
+                project().and("messageChat").size().as("size"));
+        return mongoTemplate.aggregate(aggregation, org.bson.Document.class)
+                .next()
+                .map(result -> result.getInteger("size"));
+    }
+
+    /**
+     * The oldest messages exactly as stored, so the pull can tell whether they changed since.
+     */
+    private Mono<List<org.bson.Document>> oldestMessages(UUID hubId) {
+        final org.bson.Document slice = new org.bson.Document("messageChat", new org.bson.Document("$slice", bucketSize));
+        return mongoTemplate.execute(Hub.class, collection -> collection.find(new org.bson.Document("_id", hubId)).projection(slice).first())
+                .next()
+                .map(hub -> hub.getList("messageChat", org.bson.Document.class, List.of()))
+                .filter(messages -> !messages.isEmpty());
+    }
+
+    private Mono<Boolean> archive(UUID hubId, List<org.bson.Document> oldest) {
+        final List<HubMessage> messages = oldest.stream().map(this::read).collect(Collectors.toList());
+        final LongSummaryStatistics createdAt = messages.stream()
+                .filter(message -> message.getCreatedAt() != null)
+                .mapToLong(HubMessage::getCreatedAt)
+                .summaryStatistics();
+        final String bucketId = hubId + ":" + messages.get(0).getSelector() + ":" + messages.get(messages.size() - 1).getSelector();
+        final HubMessageBucket bucket = new HubMessageBucket(bucketId, hubId, createdAt.getMin(), createdAt.getMax(), messages);
+        return mongoTemplate.save(bucket)
+                .then(pullUnchanged(hubId, bucketId, oldest, MAX_PULL_ATTEMPTS))
+                .map(left -> left < oldest.size());
+    }
+
+    /**
+     * Pulls the copied messages that still equal their copy, then copies the ones that changed meanwhile
+     * again and retries with those.
+     *
+     * @return how many of the copied messages are left embedded
+     */
+    private Mono<Integer> pullUnchanged(UUID hubId, String bucketId, List<org.bson.Document> copied, int attempts) {
+        // $in on documents compares whole elements, a message with a new reaction no longer matches its copy
+        final org.bson.Document pull = new org.bson.Document("$pull", new org.bson.Document("messageChat", new org.bson.Document("$in", copied)))
+                .append("$inc", new org.bson.Document("version", 1));
+        final List<Object> selectors = copied.stream().map(message -> message.get("_id")).collect(Collectors.toList());
+        return mongoTemplate.execute(Hub.class, collection -> collection.updateOne(new org.bson.Document("_id", hubId), pull))
+                .then(stillEmbedded(hubId, selectors))
+                .flatMap(changed -> {
+                    if (changed.isEmpty()) {
+                        return Mono.just(0);
+                    }
+                    if (attempts <= 1) {
+                        final List<Object> kept = changed.stream().map(message -> message.get("_id")).collect(Collectors.toList());
+                        return mongoTemplate.updateFirst(query(where("_id").is(bucketId)),
+                                        new Update().pull("messages", query(where("selector").in(kept))), HubMessageBucket.class)
+                                .thenReturn(changed.size());
+                    }
+                    return Flux.fromIterable(changed)
+                            .concatMap(message -> mongoTemplate.updateFirst(query(where("_id").is(bucketId).and("messages.selector").is(message.get("_id"))),
+                                    new Update().set("messages.$", read(message)), HubMessageBucket.class))
+                            .then(pullUnchanged(hubId, bucketId, changed, attempts - 1));
+                });
+    }
+
+    private Mono<List<org.bson.Document>> stillEmbedded(UUID hubId, List<Object> selectors) {
+        final List<org.bson.Document> pipeline = List.of(
+                new org.bson.Document("$match", new org.bson.Document("_id", hubId)),
+                new org.bson.Document("$project", new org.bson.Document("messageChat", new org.bson.Document("$filter", new org.bson.Document("input", "$messageChat")
+                        .append("as", "message")
+                        .append("cond", new org.bson.Document("$in", List.of("$$message._id", selectors)))))));
+        return mongoTemplate.execute(Hub.class, collection -> collection.aggregate(pipeline))
+                .next()
+                .map(hub -> hub.getList("messageChat", org.bson.Document.class, List.of()))
+                .defaultIfEmpty(List.of());
+    }
+
+    private HubMessage read(org.bson.Document message) {
+        return mongoTemplate.getConverter().read(HubMessage.class, message);
+    }
+}
+
+/**
+ * Applies chat mutations as targeted updates on the hub document, so posting a message or a reaction
+ * never reads or rewrites the rest of the chat. A mutation is described by the {@link HubEvent} it
+ * publishes once written.
+ */
+@Component
+class HubMessageStore {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final HubEventBroker hubEventBroker;
+    private final HubArchive hubArchive;
+    private final QueryMapper queryMapper;
+    private final UpdateMapper updateMapper;
+
+    public HubMessageStore(ReactiveMongoTemplate mongoTemplate, HubEventBroker hubEventBroker, HubArchive hubArchive) {
+        this.mongoTemplate = mongoTemplate;
+        this.hubEventBroker = hubEventBroker;
+        this.hubArchive = hubArchive;
+        this.queryMapper = new QueryMapper(mongoTemplate.getConverter());
+        this.updateMapper = new UpdateMapper(mongoTemplate.getConverter());
+    }
+
+    /**
+     * A message is appended when the hub exists. A reaction is added only when the user has not already
+     * reacted with that type, and removed only when present, so the per-type counter moves together
+     * with the reactions list. A reaction to a message that is no longer embedded goes to its archive
+     * bucket.
+     *
+     * @return {@code true} when the mutation changed the hub or the archive
+     */
+    public Mono<Boolean> apply(HubEvent mutation) {
+        return mongoTemplate.updateFirst(queryFor(mutation), updateFor(mutation), Hub.class)
+                .map(result -> result.getModifiedCount() > 0)
+                .flatMap(applied -> applied || HubEvent.MESSAGE.equals(mutation.getType()) ? Mono.just(applied) : hubArchive.apply(mutation))
+                .flatMap(applied -> {
+                    if (!applied) {
+                        return Mono.just(false);
+                    }
+                    if (HubEvent.MESSAGE.equals(mutation.getType())) {
+                        hubArchive.onAppended(mutation.getHubId());
+                    }
+                    return hubEventBroker.publish(List.of(mutation)).thenReturn(true);
+                });
+    }
+
+    /**
+     * Writes all mutations of one hub in a single ordered bulk write: the messages go in one
+     * {@code $push $each}, followed by the reaction changes in submission order. Per-operation outcomes
+     * are not reported by a bulk write, so the reaction changes are also sent to the archive, where only
+     * those for archived messages match, and every reaction event is published once the hub matched;
+     * subscribers must treat reaction events as idempotent (a repeated add or remove is a no-op).
+     *
+     * @return {@code true} when the hub exists
+     */
+    public Mono<Boolean> applyAll(UUID hubId, List<HubEvent> mutations) {
+        if (mutations.size() == 1) {
+            return apply(mutations.get(0));
+        }
+        final MongoPersistentEntity<?> entity = mongoTemplate.getConverter().getMappingContext().getRequiredPersistentEntity(Hub.class);
+        final List<WriteModel<org.bson.Document>> writes = new ArrayList<>();
+        final Object[] messages = mutations.stream()
+                .filter(mutation -> HubEvent.MESSAGE.equals(mutation.getType()))
+                .map(HubEvent::getMessage)
+                .toArray();
+        if (messages.length > 0) {
+            writes.add(updateOne(query(where("_id").is(hubId)), new Update().push("messageChat").each(messages), entity));
+        }
+        final List<HubEvent> reactions = mutations.stream()
+                .filter(mutation -> !HubEvent.MESSAGE.equals(mutation.getType()))
+                .collect(Collectors.toList());
+        reactions.forEach(mutation -> writes.add(updateOne(queryFor(mutation), updateFor(mutation), entity)));
+        return mongoTemplate.execute(Hub.class, collection -> collection.bulkWrite(writes))
+                .next()
+                .map(result -> result.getMatchedCount() > 0)
+                .flatMap(applied -> {
+                    if (!applied) {
+                        return Mono.just(false);
+                    }
+                    if (messages.length > 0) {
+                        hubArchive.onAppended(hubId);
+                    }
+                    return hubArchive.applyAll(reactions)
+                            .then(hubEventBroker.publish(mutations))
+                            .thenReturn(true);
+                });
+    }
+
+    /**
+     * Newest-first page of the chat, keyset-paginated on {@code (createdAt, selector)}: pass the
+     * {@code createdAt} and {@code selector} of the last message received as {@code before} and
+     * {@code beforeSelector} to get the next page. Without a selector the cursor is {@code createdAt}
+     * alone, which skips messages sharing the boundary timestamp.
+     */
+    public Flux<HubMessage> findMessagesBefore(UUID hubId, long before, UUID beforeSelector, int limit) {
+        final TypedAggregation<Hub> aggregation = newAggregation(Hub.class,
+                match(where("_id").is(hubId)),
+                unwind("messageChat"),
+                match(olderThan("messageChat", before, beforeSelector)),
+                sort(Sort.Direction.DESC, "messageChat.createdAt", "messageChat.selector"),
+                limit(limit),
+                replaceRoot("messageChat"));
+        return mongoTemplate.aggregate(aggregation, HubMessage.class);
+    }
+
+    /**
+     * Whether the message is in the hub's chat or its archive.
+     */
+    public Mono<Boolean> hasMessage(UUID hubId, UUID messageId) {
+        return mongoTemplate.exists(query(where("_id").is(hubId).and("messageChat.selector").is(messageId)), Hub.class)
+                .flatMap(embedded -> embedded ? Mono.just(true) : hubArchive.hasMessage(hubId, messageId));
+    }
+
+    /**
+     * Messages under {@code path} ordered strictly after the cursor in newest-first order.
+     */
+    static Criteria olderThan(String path, long before, UUID beforeSelector) {
+        if (beforeSelector == null) {
+            return where(path + ".createdAt").lt(before);
+        }
+        return new Criteria().orOperator(
+                where(path + ".createdAt").lt(before),
+                where(path + ".createdAt").is(before).and(path + ".selector").lt(beforeSelector));
+    }
+
+    private UpdateOneModel<org.bson.Document> updateOne(Query query, Update update, MongoPersistentEntity<?> entity) {
+        // the template bumps the version itself, raw bulk writes have to do it explicitly
+        update.inc("version", 1);
+        return new UpdateOneModel<>(queryMapper.getMappedObject(query.getQueryObject(), entity),
+                updateMapper.getMappedObject(update.getUpdateObject(), entity));
+    }
+
+    private static Query queryFor(HubEvent mutation) {
+        if (HubEvent.MESSAGE.equals(mutation.getType())) {
+            return query(where("_id").is(mutation.getHubId()));
+        }
+        return reactionQuery(where("_id").is(mutation.getHubId()), "messageChat", mutation);
+    }
+
+    private static Update updateFor(HubEvent mutation) {
+        if (HubEvent.MESSAGE.equals(mutation.getType())) {
+            return new Update().push("messageChat", mutation.getMessage());
+        }
+        return reactionUpdate("messageChat", mutation);
+    }
+
+    /**
+     * Matches the document holding the message in its {@code chat} array when the reaction change would
+     * do something: an add when the user has not reacted with that type yet, a remove when they have.
+     */
+    static Query reactionQuery(Criteria owner, String chat, HubEvent mutation) {
+        final Criteria message = where("selector").is(mutation.getMessageId());
+        switch (mutation.getType()) {
+            case HubEvent.REACTION_ADDED:
+                message.and("reactions").not().elemMatch(sameReaction(mutation.getReaction()));
+                break;
+            case HubEvent.REACTION_REMOVED:
+                message.and("reactions").elemMatch(sameReaction(mutation.getReaction()));
+                break;
+            default:
+                throw new IllegalArgumentException("unknown hub mutation " + mutation.getType());
+        }
+        return query(owner.and(chat).elemMatch(message));
+    }
+
+    static Update reactionUpdate(String chat, HubEvent mutation) {
+        switch (mutation.getType()) {
+            case HubEvent.REACTION_ADDED:
+                return new Update()
+                        .push(chat + ".$.reactions", mutation.getReaction())
+                        .inc(chat + ".$.reactionCount." + mutation.getReaction().getType(), 1);
+            case HubEvent.REACTION_REMOVED:
+                return new Update()
+                        .pull(chat + ".$.reactions", query(sameReaction(mutation.getReaction())))
+                        .inc(chat + ".$.reactionCount." + mutation.getReaction().getType(), -1);
+            default:
+                throw new IllegalArgumentException("unknown hub mutation " + mutation.getType());
+        }
+    }
+
+    private static Criteria sameReaction(UserReaction reaction) {
+        return where("createdBy").is(reaction.getCreatedBy()).and("type").is(reaction.getType());
+    }
+}
+
+/**
+ * Optional write-behind mode for hot hubs. Mutations are queued per hub and flushed as one bulk write
+ * when a hub reaches {@code max-batch} pending mutations or on every {@code window} tick, whichever
+ * comes first, so a hub taking hundreds of mutations per second costs a few writes per second. At most
+ * one flush per hub is in flight, which keeps the hub's mutations in order. Beyond {@code max-pending}
+ * queued mutations new ones are rejected with 503 until flushes catch up, rather than written ahead of
+ * the ones still queued. On shutdown new mutations are rejected, flushes under way are waited for and
+ * everything still queued is flushed.
+ * <p>
+ * By default a submitted mutation is acknowledged as soon as it is queued; with
+ * {@code acknowledge-after-flush} the caller waits for the bulk write instead.
+ */
+@Component
+@Slf4j
+class HubWriteBehindBuffer {
+
+    private static final int FLUSH_CONCURRENCY = 16;
+    private static final Duration SHUTDOWN_FLUSH_TIMEOUT = Duration.ofSeconds(10);
+
+    private final HubMessageStore hubMessageStore;
+    private final boolean enabled;
+    private final Duration window;
+    private final int maxBatch;
+    private final int maxPending;
+    private final boolean acknowledgeAfterFlush;
+
+    private final Map<UUID, List<PendingMutation>> queued = new ConcurrentHashMap<>();
+    private final Set<UUID> flushing = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile boolean stopping;
+    private Disposable ticker;
+
+    public HubWriteBehindBuffer(HubMessageStore hubMessageStore,
+                                @Value("${hub.write-behind.enabled:false}") boolean enabled,
+                                @Value("${hub.write-behind.window:50ms}") Duration window,
+                                @Value("${hub.write-behind.max-batch:500}") int maxBatch,
+                                @Value("${hub.write-behind.max-pending:10000}") int maxPending,
+                                @Value("${hub.write-behind.acknowledge-after-flush:false}") boolean acknowledgeAfterFlush) {
+        this.hubMessageStore = hubMessageStore;
+        this.enabled = enabled;
+        this.window = window;
+        this.maxBatch = maxBatch;
+        this.maxPending = maxPending;
+        this.acknowledgeAfterFlush = acknowledgeAfterFlush;
+    }
+
+    @PostConstruct
+    void start() {
+        if (enabled) {
+            ticker = Flux.interval(window)
+                    .onBackpressureDrop()
+                    // disposing the ticker would cancel a flush whose batch already left the queue, so
+                    // at shutdown it stops ticking and lets that flush finish instead
+                    .takeWhile(tick -> !stopping)
+                    .concatMap(tick -> flushAll())
+                    .subscribe();
+        }
+    }
+
+    @PreDestroy
+    void stop() {
+        stopping = true;
+        if (ticker != null) {
+            final long deadline = System.nanoTime() + SHUTDOWN_FLUSH_TIMEOUT.toNanos();
+            while ((!queued.isEmpty() || !flushing.isEmpty()) && System.nanoTime() < deadline) {
+                flushAll().block(SHUTDOWN_FLUSH_TIMEOUT);
+                if (!queued.isEmpty() || !flushing.isEmpty()) {
+                    // hubs that were mid-flush are picked up on the next pass
+                    LockSupport.parkNanos(window.toNanos());
+                }
+            }
+            ticker.dispose();
+            // only left when the timeout ran out, or by a submit that raced with the shutdown
+            List.copyOf(queued.keySet()).forEach(hubId -> {
+                final List<PendingMutation> lost = queued.remove(hubId);
+                if (lost != null) {
+                    log.error("dropping " + lost.size() + " mutations of hub " + hubId + " not flushed at shutdown");
+                    lost.forEach(entry -> entry.flushed.completeExceptionally(
+                            new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "hub writes stopped before this one was flushed")));
+                }
+            });
+        }
+    }
+
+    /**
+     * @return whether a successful submit means the mutation is only queued, not yet written
+     */
+    public boolean defersWrites() {
+        return enabled && !acknowledgeAfterFlush;
+    }
+
+    /**
+     * @return {@code true} when the mutation was applied, or was queued when writes are deferred
+     */
+    public Mono<Boolean> submit(HubEvent mutation) {
+        if (!enabled) {
+            return hubMessageStore.apply(mutation);
+        }
+        if (stopping) {
+            return Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "shutting down, retry on another instance"));
+        }
+        if (pending.incrementAndGet() > maxPending) {
+            pending.decrementAndGet();
+            return Mono.error(new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "too many hub writes pending, retry later"));
+        }
+        final UUID hubId = mutation.getHubId();
+        final PendingMutation entry = new PendingMutation(mutation);
+        final List<PendingMutation> batch = queued.compute(hubId, (id, current) -> {
+            final List<PendingMutation> mutations = current == null ? new ArrayList<>() : current;
+            mutations.add(entry);
+            return mutations;
+        });
+        if (batch.size() >= maxBatch) {
+            flush(hubId).subscribe();
+        }
+        return acknowledgeAfterFlush ? Mono.fromFuture(entry.flushed) : Mono.just(true);
+    }
+
+    private Mono<Void> flushAll() {
+        return Flux.fromIterable(List.copyOf(queued.keySet()))
+                .flatMap(this::flush, FLUSH_CONCURRENCY)
+                .then();
+    }
+
+    private Mono<Void> flush(UUID hubId) {
+        if (!flushing.add(hubId)) {
+            // the next tick picks up whatever queued up meanwhile
+            return Mono.empty();
+        }
+        final List<PendingMutation> batch = queued.remove(hubId);
+        if (batch == null) {
+            flushing.remove(hubId);
+            return Mono.empty();
+        }
+        pending.addAndGet(-batch.size());
+        final List<HubEvent> mutations = batch.stream().map(entry -> entry.mutation).collect(Collectors.toList());
+        return hubMessageStore.applyAll(hubId, mutations)
+                .doOnNext(applied -> batch.forEach(entry -> entry.flushed.complete(applied)))
+                .doOnError(error -> batch.forEach(entry -> entry.flushed.completeExceptionally(error)))
+                .onErrorResume(error -> {
+                    log.warn("failed to flush " + batch.size() + " mutations of hub " + hubId, error);
+                    return Mono.empty();
+                })
+                .doFinally(signal -> flushing.remove(hubId))
+                .then();
+    }
+
+    private static class PendingMutation {
+        private final HubEvent mutation;
+        private final CompletableFuture<Boolean> flushed = new CompletableFuture<>();
+
+        private PendingMutation(HubEvent mutation) {
+            this.mutation = mutation;
+        }
+    }
 }
 
 @RestController
 class HubController {
 
+    private static final int MAX_PAGE_SIZE = 200;
+    private static final Duration KEEP_ALIVE = Duration.ofSeconds(15);
+
     private DirectMessageRepository directMessageRepository;
+    private HubMessageStore hubMessageStore;
+    private HubEventBroker hubEventBroker;
+    private HubWriteRetry hubWriteRetry;
+    private HubWriteBehindBuffer hubWriteBehindBuffer;
+    private ReactionCatalog reactionCatalog;
+    private HubArchive hubArchive;
+    private ReactiveMongoTemplate mongoTemplate;
 
-    public HubController(DirectMessageRepository directMessageRepository) {
+    public HubController(DirectMessageRepository directMessageRepository, HubMessageStore hubMessageStore, HubEventBroker hubEventBroker,
+                         HubWriteRetry hubWriteRetry, HubWriteBehindBuffer hubWriteBehindBuffer, ReactionCatalog reactionCatalog,
+                         HubArchive hubArchive, ReactiveMongoTemplate mongoTemplate) {
         this.directMessageRepository = directMessageRepository;
+        this.hubMessageStore = hubMessageStore;
+        this.hubEventBroker = hubEventBroker;
+        this.hubWriteRetry = hubWriteRetry;
+        this.hubWriteBehindBuffer = hubWriteBehindBuffer;
+        this.reactionCatalog = reactionCatalog;
+        this.hubArchive = hubArchive;
+        this.mongoTemplate = mongoTemplate;
     }
 
     @PostMapping("/hub")
     @ResponseStatus(HttpStatus.CREATED)
     public Mono<Hub> addHub(@RequestBody Hub car) {
+        if (car.getMessageChat() == null) {
+            // $push needs an array to append to
+            car.setMessageChat(List.of());
+        }
         return directMessageRepository.save(car);
     }
 
@@ -141,83 +1239,152 @@ class HubController {
     @ResponseStatus(HttpStatus.CREATED)
     public Mono<Hub> updateHub(@PathVariable("id") UUID id, @RequestBody Hub hub) {
         hub.setSelector(id);
-        return directMessageRepository.save(hub);
+        final Query version = query(where("_id").is(id));
+        version.fields().include("version");
+        // the chat belongs to the message endpoints, so only the hub's own fields are set and nothing
+        // of the chat is read or rewritten
+        final Mono<Hub> versionedUpdate = mongoTemplate.findOne(version, Hub.class)
+                .flatMap(current -> {
+                    final Query unchanged = query(where("_id").is(id).and("version").is(current.getVersion()));
+                    unchanged.fields().exclude("messageChat");
+                    final Update fields = new Update()
+                            .set("title", hub.getTitle())
+                            .set("reach", hub.getReach())
+                            .set("latitude", hub.getLatitude())
+                            .set("longitude", hub.getLongitude())
+                            .set("location", new GeoJsonPoint(hub.getLongitude(), hub.getLatitude()))
+                            .set("admin", hub.getAdmin())
+                            .set("status", hub.getStatus())
+                            .set("password", hub.getPassword())
+                            .inc("version", 1);
+                    return mongoTemplate.findAndModify(unchanged, fields, FindAndModifyOptions.options().returnNew(true), Hub.class)
+                            .switchIfEmpty(Mono.error(() -> new OptimisticLockingFailureException("hub " + id + " changed while updating it")));
+                })
+                .switchIfEmpty(Mono.defer(() -> {
+                    hub.setMessageChat(List.of());
+                    hub.setVersion(null);
+                    return directMessageRepository.save(hub);
+                }));
+        return hubWriteRetry.withRetry(versionedUpdate)
+                .onErrorMap(OptimisticLockingFailureException.class, conflict -> new ResponseStatusException(HttpStatus.CONFLICT, "hub kept changing while updating it", conflict));
     }
 
 
     @GetMapping("/hub")
-    public Flux<Hub> getHubs() {
-        return directMessageRepository.findAll();
+    public Flux<HubSummary> getHubs() {
+        return directMessageRepository.findAllBy();
     }
 
 
     @GetMapping("/hub/{id}")
     public Mono<Hub> getHubs(@PathVariable("id") UUID id) {
-        return directMessageRepository.findById(id);
+        return directMessageRepository.findById(id)
+                .flatMap(reactionCatalog::hydrate);
+    }
+
+    @GetMapping("/hub/reactions")
+    public Flux<TypeReaction> getReactionTypes() {
+        return Flux.fromIterable(reactionCatalog.getTypes());
+    }
+
+    @PostMapping("/hub/reactions")
+    @ResponseStatus(HttpStatus.CREATED)
+    public Mono<TypeReaction> addReactionType(@RequestBody TypeReaction type) {
+        return reactionCatalog.save(type);
+    }
+
+    @GetMapping("/hub/near")
+    public Flux<HubSummary> getHubsNear(@RequestParam("lat") double latitude,
+                                        @RequestParam("lon") double longitude,
+                                        @RequestParam("radius") double radius,
+                                        @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        return directMessageRepository.findCovering(latitude, longitude, radius, Math.max(1, Math.min(limit, MAX_PAGE_SIZE)));
+    }
+
+    @GetMapping("/hub/{id}/summary")
+    public Mono<HubSummary> getHubSummary(@PathVariable("id") UUID id) {
+        return directMessageRepository.findSummaryBySelector(id);
+    }
+
+    @GetMapping("/hub/{id}/messages")
+    public Flux<HubMessage> getMessages(@PathVariable("id") UUID id,
+                                        @RequestParam(value = "before", required = false) Long before,
+                                        @RequestParam(value = "beforeSelector", required = false) UUID beforeSelector,
+                                        @RequestParam(value = "limit", defaultValue = "50") int limit) {
+        final long cursor = before == null ? Long.MAX_VALUE : before;
+        final UUID cursorSelector = before == null ? null : beforeSelector;
+        final int pageSize = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        // archived messages are only read when the embedded chat runs out before the page is full
+        return Flux.concat(hubMessageStore.findMessagesBefore(id, cursor, cursorSelector, pageSize),
+                        hubArchive.findMessagesBefore(id, cursor, cursorSelector, pageSize))
+                .distinct(HubMessage::getSelector)
+                .take(pageSize)
+                .collectList()
+                .flatMapMany(page -> reactionCatalog.hydrate(page).thenMany(Flux.fromIterable(page)));
+    }
+
+    @GetMapping(value = "/hub/{id}/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<HubEvent>> streamHub(@PathVariable("id") UUID id) {
+        final Flux<ServerSentEvent<HubEvent>> events = hubEventBroker.subscribe(id)
+                .map(event -> ServerSentEvent.builder(event).event(event.getType()).build());
+        final Flux<ServerSentEvent<HubEvent>> keepAlive = Flux.interval(KEEP_ALIVE)
+                .map(tick -> ServerSentEvent.<HubEvent>builder().comment("keep-alive").build());
+        return Flux.merge(events, keepAlive);
     }
 
     @PostMapping("/hub/{id}/addMessage")
     public Mono<ResponseEntity<Void>> addMessage(@PathVariable("id") UUID id, @RequestBody HubMessage message) {
-        return directMessageRepository.findById(id)
-                .flatMap(hub -> saveMessageInHub(hub, message)
-                        .then(Mono.just(new ResponseEntity<Void>(HttpStatus.OK)))
-                )
-                .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        final List<UserReaction> reactions = message.getReactions() == null ? List.of() : message.getReactions();
+        return Flux.fromIterable(reactions)
+                .concatMap(reactionCatalog::compact)
+                // a user reacts with a type at most once, and the counters are the server's, not the client's
+                .distinct(reaction -> List.of(String.valueOf(reaction.getCreatedBy()), reaction.getType()))
+                .collectList()
+                .flatMap(compacted -> {
+                    message.setReactions(compacted);
+                    message.setReactionCount(compacted.stream()
+                            .collect(Collectors.groupingBy(UserReaction::getType, Collectors.summingInt(reaction -> 1))));
+                    return hubWriteBehindBuffer.submit(HubEvent.message(id, message));
+                })
+                .map(appended -> new ResponseEntity<Void>(appended ? okStatus() : HttpStatus.NOT_FOUND));
     }
 
     @PostMapping("/hub/{id}/message/{idMessage}/addReaction")
     public Mono<ResponseEntity<Void>> addReaction(@PathVariable("id") UUID id, @PathVariable("idMessage") UUID idMessage, @RequestBody UserReaction reaction) {
-        return directMessageRepository.findById(id)
-                .flatMap(hub -> saveReactionInMessage(hub, idMessage, reaction)
-                        .then(Mono.just(new ResponseEntity<Void>(HttpStatus.OK)))
-                )
-                .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        return reactionCatalog.compact(reaction)
+                .flatMap(compact -> hubWriteBehindBuffer.submit(HubEvent.reaction(HubEvent.REACTION_ADDED, id, idMessage, compact)))
+                .flatMap(added -> reactionResponse(id, idMessage, added));
     }
 
 
     @DeleteMapping("/hub/{id}/message/{idMessage}/removeReaction")
     public Mono<ResponseEntity<Void>> removeReaction(@PathVariable("id") UUID id, @PathVariable("idMessage") UUID idMessage, @RequestBody UserReaction reaction) {
-        return directMessageRepository.findById(id)
-                .flatMap(hub -> removeReactionInMessage(hub, idMessage, reaction)
-                        .then(Mono.just(new ResponseEntity<Void>(HttpStatus.OK)))
-                )
-                .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
+        return reactionCatalog.compact(reaction)
+                .flatMap(compact -> hubWriteBehindBuffer.submit(HubEvent.reaction(HubEvent.REACTION_REMOVED, id, idMessage, compact)))
+                .flatMap(removed -> reactionResponse(id, idMessage, removed));
     }
 
 
     @DeleteMapping("/hub/{id}")
     public Mono<ResponseEntity<Void>> deleteHub(@PathVariable("id") UUID id) {
         return directMessageRepository.findById(id)
-                .flatMap(hub -> directMessageRepository.delete(hub)
+                .flatMap(hub -> directMessageRepository.deleteById(hub.getSelector())
                         .then(Mono.just(new ResponseEntity<Void>(HttpStatus.OK)))
                 )
                 .defaultIfEmpty(new ResponseEntity<>(HttpStatus.NOT_FOUND));
     }
 
-    private Mono<ResponseEntity<Void>> saveMessageInHub(Hub hub, HubMessage hubMessage) {
-        hub.getMessageChat().add(hubMessage);
-        return directMessageRepository.save(hub)
-                .then(Mono.just(new ResponseEntity<>(HttpStatus.OK)));
-    }
-
-    private Mono<ResponseEntity<Void>> saveReactionInMessage(Hub hub, UUID idMessage, UserReaction userReaction) {
-        hub.getMessageChat().stream()
-                .filter(hubMessage -> idMessage.equals(hubMessage.getSelector())).findFirst().
-                ifPresent(hubMessage -> hubMessage.getReactions().add(userReaction));
-        return directMessageRepository.save(hub)
-                .then(Mono.just(new ResponseEntity<>(HttpStatus.OK)));
+    private Mono<ResponseEntity<Void>> reactionResponse(UUID id, UUID idMessage, boolean applied) {
+        if (applied) {
+            return Mono.just(new ResponseEntity<>(okStatus()));
+        }
+        // a no-op reaction change is still OK as long as the message exists, embedded or archived
+        return hubMessageStore.hasMessage(id, idMessage)
+                .map(exists -> new ResponseEntity<Void>(exists ? HttpStatus.OK : HttpStatus.NOT_FOUND));
     }
 
-    private Mono<ResponseEntity<Void>> removeReactionInMessage(Hub hub, UUID idMessage, UserReaction userReaction) {
-        hub.getMessageChat().stream()
-                .filter(hubMessage -> idMessage.equals(hubMessage.getSelector())).findFirst().
-                ifPresent(hubMessage -> hubMessage.getReactions().removeIf(
-                        reaction ->
-                                reaction.getCreatedBy().equals(userReaction.getCreatedBy()) && reaction.getReaction().getSelector().equals(userReaction.getReaction().getSelector())
-                        )
-                );
-        return directMessageRepository.save(hub)
-                .then(Mono.just(new ResponseEntity<>(HttpStatus.OK)));
+    private HttpStatus okStatus() {
+        return hubWriteBehindBuffer.defersWrites() ? HttpStatus.ACCEPTED : HttpStatus.OK;
     }
 
 }
@@ -0,0 +1,49 @@
+package com.inabottle.messaging;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+
+/**
+ * Caps how often a delivery that could not be stored goes back on its queue. A plain requeue carries no
+ * count, so the delivery is republished to the tail of its queue with an attempt count header instead
+ * and the original acked; after {@code maxAttempts} it goes to {@code <queue>.dead}, so a batch that can
+ * never be stored stops cycling. Each service declares one as a bean with its own cap.
+ */
+@Slf4j
+public class DeliveryRetry {
+
+    public static final String ATTEMPTS_HEADER = "x-inabottle-attempts";
+    public static final String DEAD_LETTER_SUFFIX = ".dead";
+
+    private final RabbitTemplate rabbitTemplate;
+    private final int maxAttempts;
+
+    public DeliveryRetry(RabbitTemplate rabbitTemplate, int maxAttempts) {
+        this.rabbitTemplate = rabbitTemplate;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * @return whether the delivery was handed on and the original can be acked; when the broker refused
+     * it, the caller should fall back on a plain requeue
+     */
+    public boolean retryOrDeadLetter(String queue, Message message) {
+        final Object previous = message.getMessageProperties().getHeaders().get(ATTEMPTS_HEADER);
+        final int attempts = (previous instanceof Number ? ((Number) previous).intValue() : 0) + 1;
+        final boolean dead = attempts >= maxAttempts;
+        try {
+            rabbitTemplate.send("", dead ? queue + DEAD_LETTER_SUFFIX : queue,
+                    MessageBuilder.fromMessage(message).setHeader(ATTEMPTS_HEADER, attempts).build());
+        } catch (AmqpException e) {
+            log.warn("could not republish a failed delivery from " + queue, e);
+            return false;
+        }
+        if (dead) {
+            log.error("moved a delivery from " + queue + " to " + queue + DEAD_LETTER_SUFFIX + " after " + attempts + " attempts");
+        }
+        return true;
+    }
+}
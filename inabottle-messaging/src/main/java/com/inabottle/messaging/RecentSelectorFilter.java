@@ -0,0 +1,118 @@
+package com.inabottle.messaging;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/**
+ * Remembers recently persisted selectors so redelivered messages can be dropped before they reach
+ * Mongo. A Bloom filter in two generations, rotated every {@code window}, answers "maybe seen" in
+ * constant memory; a bounded LRU set of the latest selectors then confirms the answer. A maybe the
+ * set cannot confirm (a Bloom collision, or a selector already evicted from the set) is let through
+ * and counted as a false positive, so nothing is ever dropped on the Bloom filter alone.
+ */
+public class RecentSelectorFilter {
+
+    private final int bits;
+    private final int hashes;
+    private final long windowMillis;
+    private final Map<UUID, Boolean> confirmed;
+    private final Counter hits;
+    private final Counter falsePositives;
+    private final LongSupplier clock;
+    private BitSet current;
+    private BitSet previous;
+    private long rotatedAt;
+
+    public RecentSelectorFilter(String name, int expectedPerWindow, double falsePositiveRate, Duration window,
+                                int confirmSize, MeterRegistry meterRegistry) {
+        this(name, expectedPerWindow, falsePositiveRate, window, confirmSize, meterRegistry, System::currentTimeMillis);
+    }
+
+    public RecentSelectorFilter(String name, int expectedPerWindow, double falsePositiveRate, Duration window,
+                                int confirmSize, MeterRegistry meterRegistry, LongSupplier clock) {
+        this.bits = (int) Math.ceil(-expectedPerWindow * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.hashes = Math.max(1, (int) Math.round((double) bits / expectedPerWindow * Math.log(2)));
+        this.windowMillis = window.toMillis();
+        this.confirmed = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Boolean> eldest) {
+                return size() > confirmSize;
+            }
+        };
+        this.hits = meterRegistry.counter(name + ".dedupe.hits");
+        this.falsePositives = meterRegistry.counter(name + ".dedupe.false-positives");
+        this.current = new BitSet(bits);
+        this.previous = new BitSet(bits);
+        this.clock = clock;
+        this.rotatedAt = clock.getAsLong();
+    }
+
+    /**
+     * Whether the selector was recorded recently; unknown and {@code null} selectors are not.
+     */
+    public synchronized boolean seen(UUID selector) {
+        if (selector == null) {
+            return false;
+        }
+        rotateIfDue();
+        if (!mightContain(current, selector) && !mightContain(previous, selector)) {
+            return false;
+        }
+        if (confirmed.get(selector) != null) {
+            hits.increment();
+            return true;
+        }
+        falsePositives.increment();
+        return false;
+    }
+
+    /**
+     * Records a selector once it is safely stored.
+     */
+    public synchronized void record(UUID selector) {
+        if (selector == null) {
+            return;
+        }
+        rotateIfDue();
+        final long h1 = mix(selector.getMostSignificantBits());
+        final long h2 = mix(selector.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < hashes; i++) {
+            current.set((int) Math.floorMod(h1 + i * h2, (long) bits));
+        }
+        confirmed.put(selector, Boolean.TRUE);
+    }
+
+    private boolean mightContain(BitSet generation, UUID selector) {
+        final long h1 = mix(selector.getMostSignificantBits());
+        final long h2 = mix(selector.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < hashes; i++) {
+            if (!generation.get((int) Math.floorMod(h1 + i * h2, (long) bits))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rotateIfDue() {
+        final long now = clock.getAsLong();
+        if (now - rotatedAt >= windowMillis) {
+            // a selector stays known for one to two windows
+            previous = now - rotatedAt >= 2 * windowMillis ? new BitSet(bits) : current;
+            current = new BitSet(bits);
+            rotatedAt = now;
+        }
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+}
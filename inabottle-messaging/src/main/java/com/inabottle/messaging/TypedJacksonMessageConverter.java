@@ -0,0 +1,59 @@
+package com.inabottle.messaging;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Jackson converter that reads AMQP bodies straight from bytes into the listener's declared parameter
+ * type, so payloads need no type headers and skip the intermediate String and map tree.
+ */
+public class TypedJacksonMessageConverter implements MessageConverter {
+
+    public static final String SMILE = "application/x-jackson-smile";
+
+    private final ObjectMapper objectMapper;
+    private final String contentType;
+
+    public TypedJacksonMessageConverter(ObjectMapper objectMapper, String contentType) {
+        this.objectMapper = objectMapper;
+        this.contentType = contentType;
+    }
+
+    public static TypedJacksonMessageConverter json(ObjectMapper objectMapper) {
+        return new TypedJacksonMessageConverter(objectMapper, MessageProperties.CONTENT_TYPE_JSON);
+    }
+
+    public static TypedJacksonMessageConverter smile() {
+        return new TypedJacksonMessageConverter(Jackson2ObjectMapperBuilder.smile().build(), SMILE);
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) {
+        try {
+            final byte[] body = objectMapper.writeValueAsBytes(object);
+            messageProperties.setContentType(contentType);
+            messageProperties.setContentLength(body.length);
+            return new Message(body, messageProperties);
+        } catch (JsonProcessingException e) {
+            throw new MessageConversionException("could not write " + contentType, e);
+        }
+    }
+
+    @Override
+    public Object fromMessage(Message message) {
+        final Type type = message.getMessageProperties().getInferredArgumentType();
+        try {
+            return objectMapper.readValue(message.getBody(), objectMapper.getTypeFactory().constructType(type == null ? Object.class : type));
+        } catch (IOException e) {
+            throw new MessageConversionException("could not read " + contentType, e);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.inabottle.messaging;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecentSelectorFilterTest {
+
+	private static final Duration WINDOW = Duration.ofMinutes(10);
+
+	private final MeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private final AtomicLong now = new AtomicLong(1_000_000L);
+
+	@Test
+	void recordedSelectorIsSeen() {
+		final RecentSelectorFilter filter = filter(100);
+		final UUID selector = UUID.randomUUID();
+
+		filter.record(selector);
+
+		assertThat(filter.seen(selector)).isTrue();
+		assertThat(meterRegistry.counter("test.dedupe.hits").count()).isEqualTo(1.0);
+	}
+
+	@Test
+	void unknownAndNullSelectorsAreNotSeen() {
+		final RecentSelectorFilter filter = filter(100);
+		filter.record(UUID.randomUUID());
+
+		assertThat(filter.seen(UUID.randomUUID())).isFalse();
+		assertThat(filter.seen(null)).isFalse();
+	}
+
+	@Test
+	void selectorIsKeptForOneWindowAfterRotation() {
+		final RecentSelectorFilter filter = filter(100);
+		final UUID selector = UUID.randomUUID();
+		filter.record(selector);
+
+		now.addAndGet(WINDOW.toMillis());
+
+		assertThat(filter.seen(selector)).isTrue();
+	}
+
+	@Test
+	void selectorIsForgottenAfterTwoWindows() {
+		final RecentSelectorFilter filter = filter(100);
+		final UUID selector = UUID.randomUUID();
+		filter.record(selector);
+
+		now.addAndGet(WINDOW.toMillis());
+		filter.seen(UUID.randomUUID());
+		now.addAndGet(WINDOW.toMillis());
+
+		assertThat(filter.seen(selector)).isFalse();
+	}
+
+	@Test
+	void bloomMatchTheConfirmSetLostIsLetThroughAsFalsePositive() {
+		final RecentSelectorFilter filter = filter(1);
+		final UUID evicted = UUID.randomUUID();
+		filter.record(evicted);
+		filter.record(UUID.randomUUID());
+
+		assertThat(filter.seen(evicted)).isFalse();
+		assertThat(meterRegistry.counter("test.dedupe.false-positives").count()).isEqualTo(1.0);
+		assertThat(meterRegistry.counter("test.dedupe.hits").count()).isZero();
+	}
+
+	private RecentSelectorFilter filter(int confirmSize) {
+		return new RecentSelectorFilter("test", 1_000, 0.01, WINDOW, confirmSize, meterRegistry, now::get);
+	}
+}
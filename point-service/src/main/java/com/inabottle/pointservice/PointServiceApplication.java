@@ -1,28 +1,114 @@
 package com.inabottle.pointservice;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inabottle.messaging.DeliveryRetry;
+import com.inabottle.messaging.RecentSelectorFilter;
+import com.inabottle.messaging.TypedJacksonMessageConverter;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.AnonymousQueue;
 import org.springframework.amqp.core.Binding;
 import org.springframework.amqp.core.BindingBuilder;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.core.TopicExchange;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.amqp.support.converter.ContentTypeDelegatingMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationRunner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.netflix.eureka.EnableEurekaClient;
 import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Range;
+import org.springframework.data.domain.Range.Bound;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.index.PartialIndexFilter;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.repository.Aggregation;
 import org.springframework.data.mongodb.repository.ReactiveMongoRepository;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
 @EnableEurekaClient
 @EnableDiscoveryClient
@@ -52,29 +138,170 @@ class PointServiceApplication {
     }
 
     @Bean
-    public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory) {
+    Queue leaderboardQueue() {
+        // one queue per instance, so every instance's board hears every credit
+        return new AnonymousQueue();
+    }
+
+    @Bean
+    Binding leaderboardBinding(Queue leaderboardQueue, TopicExchange exchange) {
+        return BindingBuilder.bind(leaderboardQueue).to(exchange).with(LeaderboardFeed.CREDITED_ROUTING_KEY);
+    }
+
+    @Bean
+    Queue deadLetterQueue() {
+        // deliveries that keep failing end up here for inspection instead of cycling forever
+        return new Queue(PointsListener.QUEUE + DeliveryRetry.DEAD_LETTER_SUFFIX, true);
+    }
+
+    @Bean
+    public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory, final MessageConverter messageConverter) {
         final var rabbitTemplate = new RabbitTemplate(connectionFactory);
-        rabbitTemplate.setMessageConverter(producerJackson2MessageConverter());
+        rabbitTemplate.setMessageConverter(messageConverter);
         return rabbitTemplate;
     }
 
     @Bean
-    public Jackson2JsonMessageConverter producerJackson2MessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    SimpleRabbitListenerContainerFactory batchContainerFactory(SimpleRabbitListenerContainerFactoryConfigurer configurer,
+                                                               ConnectionFactory connectionFactory,
+                                                               @Value("${points.consumer.prefetch:2000}") int prefetch,
+                                                               @Value("${points.consumer.concurrency:1}") int concurrency) {
+        final var factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        // deliveries stay unacked until their batch is in Mongo, so prefetch bounds what sits in memory
+        factory.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        factory.setPrefetchCount(prefetch);
+        factory.setConcurrentConsumers(concurrency);
+        return factory;
+    }
+
+    @Bean
+    DeliveryRetry deliveryRetry(RabbitTemplate rabbitTemplate, @Value("${points.consumer.max-attempts:5}") int maxAttempts) {
+        return new DeliveryRetry(rabbitTemplate, maxAttempts);
+    }
+
+    @Bean
+    RecentSelectorFilter recentSelectorFilter(MeterRegistry meterRegistry,
+                                              @Value("${points.dedupe.expected-per-window:100000}") int expectedPerWindow,
+                                              @Value("${points.dedupe.false-positive-rate:0.01}") double falsePositiveRate,
+                                              @Value("${points.dedupe.window:10m}") Duration window,
+                                              @Value("${points.dedupe.confirm-size:50000}") int confirmSize) {
+        return new RecentSelectorFilter("points", expectedPerWindow, falsePositiveRate, window, confirmSize, meterRegistry);
+    }
+
+    @Bean
+    RecentSelectorFilter recentAwardFilter(MeterRegistry meterRegistry,
+                                           @Value("${points.dedupe.expected-per-window:100000}") int expectedPerWindow,
+                                           @Value("${points.dedupe.false-positive-rate:0.01}") double falsePositiveRate,
+                                           @Value("${points.dedupe.window:10m}") Duration window,
+                                           @Value("${points.dedupe.confirm-size:50000}") int confirmSize) {
+        return new RecentSelectorFilter("points.award", expectedPerWindow, falsePositiveRate, window, confirmSize, meterRegistry);
+    }
+
+    @Bean
+    ApplicationRunner rebuildLeaderboard(ReactiveMongoTemplate mongoTemplate, PointsHistoryRepository pointsHistoryRepository,
+                                         UserPointsRepository userPointsRepository, LeaderboardFeed leaderboardFeed,
+                                         RabbitListenerEndpointRegistry listenerRegistry) {
+        // points-queue is only consumed once the award guard exists and the board is loaded,
+        // so no event lands in a board about to be replaced
+        return args -> mongoTemplate.indexOps(PointsHistory.class).ensureIndex(PointsHistory.AWARD_INDEX)
+                .onErrorResume(e -> {
+                    log.error("could not create the award index, duplicate awards are only caught in memory", e);
+                    return Mono.empty();
+                })
+                .then(userPointsRepository.count())
+                // totals are materialized from the history once, the first time this runs
+                .flatMap(count -> count > 0 ? Mono.just(count) : userPointsRepository.saveAll(pointsHistoryRepository.totals()).count())
+                .then(leaderboardFeed.load())
+                .subscribe(users -> {
+                    log.info("leaderboard loaded with " + users + " users");
+                    listenerRegistry.getListenerContainers().forEach(MessageListenerContainer::start);
+                }, e -> log.error("could not load the leaderboard, points-queue is not consumed", e));
+    }
+
+    @Bean
+    ApplicationRunner backfillRollups(PointsRollups rollups, @Value("${points.rollup.backfill:false}") boolean backfill) {
+        return args -> {
+            if (backfill) {
+                rollups.backfill().subscribe(count -> log.info("rolled up " + count + " points entries"),
+                        e -> log.error("rollup backfill stopped, rerun it to continue", e));
+            }
+        };
+    }
+
+    @Bean
+    public MessageConverter messageConverter(ObjectMapper objectMapper) {
+        // producers pick the encoding; anything not marked as Smile is read as JSON
+        final var converter = new ContentTypeDelegatingMessageConverter(TypedJacksonMessageConverter.json(objectMapper));
+        converter.addDelegate(TypedJacksonMessageConverter.SMILE, TypedJacksonMessageConverter.smile());
+        return converter;
     }
 }
 
 @Document
+@CompoundIndexes({
+        @CompoundIndex(name = "user_history", def = "{'createdBy': 1, 'createdAt': 1, '_id': 1}"),
+        @CompoundIndex(name = "uncredited", def = "{'credited': 1, 'batch': 1}")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 class PointsHistory {
+    /**
+     * A source credits a user at most once; entries without a source are not guarded.
+     */
+    static final Index AWARD_INDEX = new Index()
+            .on("createdBy", Sort.Direction.ASC)
+            .on("idSource", Sort.Direction.ASC)
+            .on("typeSource", Sort.Direction.ASC)
+            .named("award")
+            .unique()
+            .partial(PartialIndexFilter.of(where("idSource").exists(true)));
+
+    @Id
+    private UUID selector;
+    private String createdBy;
+    private UUID idSource;
+    private String typeSource;
+    private Integer amount;
+    private Long createdAt;
+    private Boolean rolledUp;
+    /**
+     * The batch the entry was credited or rolled up with; totals and rollups apply a batch at most once.
+     */
+    private UUID batch;
+    /**
+     * {@code false} while the entry's batch may still be missing from the totals or rollups, see
+     * {@link PointsCreditor}; absent on entries stored before batches were tracked.
+     */
+    private Boolean credited;
+
+    /**
+     * The key guarded by {@link #AWARD_INDEX}, or {@code null} for entries without a source.
+     */
+    static UUID awardKey(PointsHistory points) {
+        if (points.getIdSource() == null) {
+            return null;
+        }
+        return UUID.nameUUIDFromBytes((points.getCreatedBy() + "|" + points.getIdSource() + "|" + points.getTypeSource())
+                .getBytes(StandardCharsets.UTF_8));
+    }
+}
+
+/**
+ * History view of an entry: what was awarded, without the crediting and rollup bookkeeping.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class PointsHistoryEntry {
     @Id
     private UUID selector;
     private String createdBy;
     private UUID idSource;
     private String typeSource;
     private Integer amount;
+    private Long createdAt;
 }
 
 
@@ -83,26 +310,893 @@ class PointsHistory {
 @NoArgsConstructor
 @AllArgsConstructor
 class UserPoints {
+    @Id
     private String createdBy;
     private Integer amount;
 }
 
+/**
+ * Records that one step of a batch (crediting the totals, or rolling it up) is done. It is written in
+ * the same transaction as the step's writes, see {@link PointsBatchGuard}, and expires long after the
+ * batch could be replayed.
+ */
+@Document("pointsBatch")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class PointsBatch {
+    static final int RETENTION_SECONDS = 30 * 24 * 60 * 60;
+
+    @Id
+    private String id;
+    @Indexed(expireAfterSeconds = RETENTION_SECONDS)
+    private Date appliedAt;
+}
+
 interface PointsHistoryRepository extends ReactiveMongoRepository<PointsHistory, UUID> {
+
+    @Aggregation(pipeline = {
+            "{ $match: { amount: { $ne: null }, credited: { $ne: false } } }",
+            "{ $group: { _id: '$createdBy', amount: { $sum: '$amount' } } }"
+    })
+    Flux<UserPoints> totals();
+}
+
+interface UserPointsRepository extends ReactiveMongoRepository<UserPoints, String> {
+}
+
+/**
+ * Points earned in one calendar window (UTC), either by one user or through one type of source.
+ */
+@Document
+@CompoundIndex(name = "window", def = "{'scope': 1, 'key': 1, 'granularity': 1, 'periodStart': 1}")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+class PointsRollup {
+    static final String USER = "user";
+    static final String TYPE = "type";
+    static final List<String> GRANULARITIES = List.of("day", "week", "month");
+
+    @Id
+    private String id;
+    private String scope;
+    private String key;
+    private String granularity;
+    private Long periodStart;
+    private Long amount;
+    private Long count;
+
+    /**
+     * Start of the day, ISO week or month holding the instant, in epoch millis.
+     */
+    static long periodStart(String granularity, long epochMillis) {
+        final LocalDate day = Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC).toLocalDate();
+        final LocalDate start;
+        switch (granularity) {
+            case "day":
+                start = day;
+                break;
+            case "week":
+                start = day.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                break;
+            case "month":
+                start = day.withDayOfMonth(1);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown granularity " + granularity);
+        }
+        return start.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+}
+
+interface PointsRollupRepository extends ReactiveMongoRepository<PointsRollup, String> {
+
+    Flux<PointsRollup> findByScopeAndKeyAndGranularityAndPeriodStartBetween(String scope, String key, String granularity,
+                                                                             Range<Long> periodStart, Pageable pageable);
+}
+
+/**
+ * Keeps the {@link PointsRollup} buckets. Every entry adds to six buckets (its user and its type of
+ * source, per day, week and month), folded into one upsert per bucket for a whole batch, and a batch
+ * is rolled up at most once through {@link PointsBatchGuard}. Entries consumed live are stored already
+ * marked as rolled up; {@link #backfill} covers the history stored before, once.
+ */
+@Component
+class PointsRollups {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final PointsBatchGuard batchGuard;
+    private final int backfillBatch;
+
+    public PointsRollups(ReactiveMongoTemplate mongoTemplate, PointsBatchGuard batchGuard,
+                         @Value("${points.rollup.backfill-batch:1000}") int backfillBatch) {
+        this.mongoTemplate = mongoTemplate;
+        this.batchGuard = batchGuard;
+        this.backfillBatch = backfillBatch;
+    }
+
+    public Mono<Void> add(UUID batch, List<PointsHistory> entries) {
+        final Map<String, PointsRollup> buckets = new HashMap<>();
+        entries.stream()
+                .filter(entry -> entry.getAmount() != null && entry.getCreatedAt() != null)
+                .forEach(entry -> {
+                    addTo(buckets, PointsRollup.USER, entry.getCreatedBy(), entry);
+                    addTo(buckets, PointsRollup.TYPE, entry.getTypeSource(), entry);
+                });
+        if (buckets.isEmpty()) {
+            return Mono.empty();
+        }
+        final List<UpdateOneModel<org.bson.Document>> models = buckets.values().stream()
+                .map(bucket -> new UpdateOneModel<org.bson.Document>(
+                        new org.bson.Document("_id", bucket.getId()),
+                        new org.bson.Document("$inc", new org.bson.Document("amount", bucket.getAmount()).append("count", bucket.getCount()))
+                                .append("$setOnInsert", new org.bson.Document("scope", bucket.getScope())
+                                        .append("key", bucket.getKey())
+                                        .append("granularity", bucket.getGranularity())
+                                        .append("periodStart", bucket.getPeriodStart())),
+                        new UpdateOptions().upsert(true)))
+                .collect(Collectors.toList());
+        return batchGuard.once(PointsBatchGuard.ROLLUP, batch, operations -> operations.execute(PointsRollup.class,
+                        collection -> collection.bulkWrite(models, new BulkWriteOptions().ordered(false))))
+                .then();
+    }
+
+    /**
+     * Rolls up, in batches as a cursor streams them, the entries not rolled up yet, and marks them.
+     * Each batch is claimed first by stamping a batch id on its entries, so the buckets record it and
+     * a rerun after a crash applies it again as a no-op; batches claimed by an earlier run are finished
+     * before new ones are claimed. Entries without a createdAt fit no window and are only marked.
+     */
+    public Mono<Long> backfill() {
+        final Flux<List<PointsHistory>> claimed = mongoTemplate
+                .findDistinct(query(where("rolledUp").ne(true).and("batch").exists(true)), "batch", PointsHistory.class, UUID.class)
+                .concatMap(batch -> mongoTemplate.find(query(where("batch").is(batch).and("rolledUp").ne(true)), PointsHistory.class)
+                        .collectList());
+        final Flux<List<PointsHistory>> unclaimed = mongoTemplate
+                .find(query(where("rolledUp").ne(true).and("batch").exists(false)), PointsHistory.class)
+                .buffer(backfillBatch)
+                .concatMap(this::claim);
+        return Flux.concat(claimed, unclaimed)
+                .filter(entries -> !entries.isEmpty())
+                .concatMap(entries -> {
+                    final UUID batch = entries.get(0).getBatch();
+                    return add(batch, entries)
+                            .then(mongoTemplate.updateMulti(query(where("batch").is(batch)),
+                                    new Update().set("rolledUp", true), PointsHistory.class))
+                            .thenReturn((long) entries.size());
+                })
+                .reduce(0L, Long::sum);
+    }
+
+    /**
+     * Stamps a new batch id on those of the entries no other run has claimed, and reads back what it got.
+     */
+    private Mono<List<PointsHistory>> claim(List<PointsHistory> entries) {
+        final UUID batch = UUID.randomUUID();
+        return mongoTemplate.updateMulti(
+                query(where("selector").in(entries.stream().map(PointsHistory::getSelector).collect(Collectors.toList()))
+                        .and("batch").exists(false)),
+                new Update().set("batch", batch), PointsHistory.class)
+                .thenMany(mongoTemplate.find(query(where("batch").is(batch)), PointsHistory.class))
+                .collectList();
+    }
+
+    private static void addTo(Map<String, PointsRollup> buckets, String scope, String key, PointsHistory entry) {
+        if (key == null) {
+            return;
+        }
+        for (String granularity : PointsRollup.GRANULARITIES) {
+            final long periodStart = PointsRollup.periodStart(granularity, entry.getCreatedAt());
+            final String id = scope + "|" + key + "|" + granularity + "|" + periodStart;
+            final PointsRollup bucket = buckets.computeIfAbsent(id, ignored -> new PointsRollup(id, scope, key, granularity, periodStart, 0L, 0L));
+            bucket.setAmount(bucket.getAmount() + entry.getAmount());
+            bucket.setCount(bucket.getCount() + 1);
+        }
+    }
+}
+
+/**
+ * Raw bulk writes for points-queue batches.
+ */
+@Component
+class PointsBulkWriter {
+
+    private static final int DUPLICATE_KEY = 11000;
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final PointsBatchGuard batchGuard;
+
+    public PointsBulkWriter(ReactiveMongoTemplate mongoTemplate, PointsBatchGuard batchGuard) {
+        this.mongoTemplate = mongoTemplate;
+        this.batchGuard = batchGuard;
+    }
+
+    /**
+     * Inserts the history entries in one unordered write and returns those actually inserted; entries
+     * already stored are skipped, any other failure fails the whole batch.
+     */
+    public Mono<List<PointsHistory>> insert(List<PointsHistory> entries) {
+        if (entries.isEmpty()) {
+            return Mono.just(List.of());
+        }
+        final List<org.bson.Document> documents = entries.stream()
+                .map(entry -> {
+                    final var document = new org.bson.Document();
+                    mongoTemplate.getConverter().write(entry, document);
+                    return document;
+                })
+                .collect(Collectors.toList());
+        return mongoTemplate.getCollection(mongoTemplate.getCollectionName(PointsHistory.class))
+                .flatMap(collection -> Mono.from(collection.insertMany(documents, new InsertManyOptions().ordered(false))))
+                .map(result -> entries)
+                .onErrorResume(MongoBulkWriteException.class, e -> duplicates(e)
+                        .map(duplicates -> IntStream.range(0, entries.size())
+                                .filter(index -> !duplicates.contains(index))
+                                .mapToObj(entries::get)
+                                .collect(Collectors.toList())));
+    }
+
+    /**
+     * Adds the amounts of a batch to the users' totals, one upsert per user, and returns the amounts
+     * added: all of them, or none when the batch was credited before.
+     */
+    public Mono<Map<String, Integer>> credit(UUID batch, Map<String, Integer> amounts) {
+        if (amounts.isEmpty()) {
+            return Mono.just(Map.of());
+        }
+        final List<UpdateOneModel<org.bson.Document>> models = amounts.entrySet().stream()
+                .map(amount -> new UpdateOneModel<org.bson.Document>(
+                        new org.bson.Document("_id", amount.getKey()),
+                        new org.bson.Document("$inc", new org.bson.Document("amount", amount.getValue())),
+                        new UpdateOptions().upsert(true)))
+                .collect(Collectors.toList());
+        return batchGuard.once(PointsBatchGuard.CREDIT, batch, operations -> operations.execute(UserPoints.class,
+                        collection -> collection.bulkWrite(models, new BulkWriteOptions().ordered(false))))
+                .map(applied -> applied ? amounts : Map.<String, Integer>of());
+    }
+
+    /**
+     * The indexes of the writes rejected as duplicates, or the error when anything else failed.
+     */
+    private static Mono<Set<Integer>> duplicates(MongoBulkWriteException e) {
+        if (e.getWriteConcernError() != null || e.getWriteErrors().stream().anyMatch(error -> error.getCode() != DUPLICATE_KEY)) {
+            return Mono.error(e);
+        }
+        return Mono.just(e.getWriteErrors().stream().map(BulkWriteError::getIndex).collect(Collectors.toSet()));
+    }
+}
+
+/**
+ * Applies a step of a batch at most once. The step's writes run in a transaction that first inserts the
+ * batch's {@link PointsBatch} marker, so a replay fails on the duplicate marker and rolls back without
+ * touching the totals. This needs Mongo to run as a replica set.
+ */
+@Component
+class PointsBatchGuard {
+
+    static final String CREDIT = "credit";
+    static final String ROLLUP = "rollup";
+
+    private final ReactiveMongoTemplate mongoTemplate;
+
+    public PointsBatchGuard(ReactiveMongoTemplate mongoTemplate) {
+        this.mongoTemplate = mongoTemplate;
+    }
+
+    /**
+     * @return whether the writes were applied now, {@code false} when the step was done before
+     */
+    public Mono<Boolean> once(String step, UUID batch, Function<ReactiveMongoOperations, Publisher<?>> writes) {
+        return mongoTemplate.inTransaction()
+                .execute(operations -> operations.insert(new PointsBatch(step + "|" + batch, new Date()))
+                        .thenMany(writes.apply(operations))
+                        .then(Mono.just(true)))
+                .next()
+                .onErrorResume(DuplicateKeyException.class, e -> Mono.just(false));
+    }
+}
+
+/**
+ * Applies stored history entries to the user totals, the rollups and the leaderboards, keyed by their
+ * batch so that applying a batch twice changes nothing. Entries are stored with {@code credited} false
+ * and marked once everything is applied; a batch that fails halfway stays unmarked and is finished
+ * every {@code points.reconcile.interval}, so a failure after the history insert loses no points.
+ */
+@Component
+@Slf4j
+class PointsCreditor {
+
+    // concurrent batches conflict on the type buckets they all touch, and a conflicting transaction aborts
+    private static final Retry RETRY = Retry.backoff(8, Duration.ofMillis(20));
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final PointsBulkWriter bulkWriter;
+    private final PointsRollups rollups;
+    private final LeaderboardFeed leaderboardFeed;
+    private final Duration interval;
+    private Disposable reconciler;
+
+    public PointsCreditor(ReactiveMongoTemplate mongoTemplate, PointsBulkWriter bulkWriter, PointsRollups rollups,
+                          LeaderboardFeed leaderboardFeed, @Value("${points.reconcile.interval:1m}") Duration interval) {
+        this.mongoTemplate = mongoTemplate;
+        this.bulkWriter = bulkWriter;
+        this.rollups = rollups;
+        this.leaderboardFeed = leaderboardFeed;
+        this.interval = interval;
+    }
+
+    @PostConstruct
+    void start() {
+        reconciler = Flux.interval(interval)
+                .onBackpressureDrop()
+                .concatMap(tick -> reconcile()
+                        .doOnNext(count -> {
+                            if (count > 0) {
+                                log.info("credited " + count + " points entries left over by failed batches");
+                            }
+                        })
+                        .onErrorResume(e -> {
+                            log.warn("could not credit the entries left over by failed batches", e);
+                            return Mono.empty();
+                        }))
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        reconciler.dispose();
+    }
+
+    public Mono<Void> credit(UUID batch, List<PointsHistory> entries) {
+        final Map<String, Integer> amounts = entries.stream()
+                .filter(entry -> entry.getAmount() != null)
+                .collect(Collectors.groupingBy(PointsHistory::getCreatedBy, Collectors.summingInt(PointsHistory::getAmount)));
+        return bulkWriter.credit(batch, amounts)
+                .retryWhen(RETRY)
+                // a replayed batch broadcasts the same totals again, which changes nothing
+                .then(leaderboardFeed.publish(amounts.keySet()))
+                .then(rollups.add(batch, entries).retryWhen(RETRY))
+                .then(mongoTemplate.updateMulti(query(where("batch").is(batch).and("credited").is(false)),
+                        new Update().set("credited", true), PointsHistory.class))
+                .then();
+    }
+
+    /**
+     * Credits, batch by batch, the entries still marked uncredited and returns how many there were. A
+     * batch being credited live at the same time is harmless, whichever write lands second is skipped.
+     */
+    public Mono<Long> reconcile() {
+        return mongoTemplate.findDistinct(query(where("credited").is(false)), "batch", PointsHistory.class, UUID.class)
+                .concatMap(batch -> mongoTemplate.find(query(where("batch").is(batch).and("credited").is(false)), PointsHistory.class)
+                        .collectList()
+                        .flatMap(entries -> credit(batch, entries).thenReturn((long) entries.size())))
+                .reduce(0L, Long::sum);
+    }
 }
 
+/**
+ * Consumes points-queue in micro-batches. Deliveries are gathered for up to {@code points.consumer.window}
+ * or {@code max-batch} entries; each batch becomes one unordered history insert, after which the entries
+ * actually inserted are credited by {@link PointsCreditor}, and its deliveries are acked only after both.
+ * Repeated selectors and awards are dropped from memory when recent and rejected by the indexes
+ * otherwise, so a source never credits a user twice. A batch whose insert fails goes back through
+ * {@link DeliveryRetry}; one whose credit fails is already stored and left to the creditor. At most
+ * {@code max-in-flight} batches are written at once, and unacked deliveries are capped by
+ * {@code prefetch} per consumer.
+ */
 @Service
-class DirectMessageListener {
+@Slf4j
+class PointsListener {
+
+    static final String QUEUE = "points-queue";
 
-    private final PointsHistoryRepository pointsHistoryRepository;
+    private final PointsBulkWriter bulkWriter;
+    private final PointsCreditor creditor;
+    private final RecentSelectorFilter recentSelectors;
+    private final RecentSelectorFilter recentAwards;
+    private final DeliveryRetry deliveryRetry;
+    private final DistributionSummary batchSize;
+    private final Timer batchLatency;
+    private final int maxBatch;
+    private final Duration window;
+    private final int maxInFlight;
+    private FluxSink<Delivery> deliveries;
+    private Disposable pipeline;
 
-    public DirectMessageListener(PointsHistoryRepository pointsHistoryRepository) {
+    public PointsListener(PointsBulkWriter bulkWriter, PointsCreditor creditor, RecentSelectorFilter recentSelectorFilter,
+                          RecentSelectorFilter recentAwardFilter, DeliveryRetry deliveryRetry,
+                          MeterRegistry meterRegistry,
+                          @Value("${points.consumer.max-batch:500}") int maxBatch,
+                          @Value("${points.consumer.window:50ms}") Duration window,
+                          @Value("${points.consumer.max-in-flight:4}") int maxInFlight) {
         System.out.println("Criando consumer: ");
-        this.pointsHistoryRepository = pointsHistoryRepository;
+        this.bulkWriter = bulkWriter;
+        this.creditor = creditor;
+        this.recentSelectors = recentSelectorFilter;
+        this.recentAwards = recentAwardFilter;
+        this.deliveryRetry = deliveryRetry;
+        this.batchSize = meterRegistry.summary("points.ingest.batch.size");
+        this.batchLatency = meterRegistry.timer("points.ingest.batch.latency");
+        this.maxBatch = maxBatch;
+        this.window = window;
+        this.maxInFlight = maxInFlight;
+    }
+
+    @PostConstruct
+    void start() {
+        pipeline = Flux.<Delivery>create(sink -> deliveries = sink)
+                .bufferTimeout(maxBatch, window)
+                // bufferTimeout cannot wait for demand; the backlog is still bounded by the prefetch
+                .onBackpressureBuffer()
+                .flatMap(this::write, maxInFlight)
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        deliveries.complete();
+        pipeline.dispose();
+    }
+
+    @RabbitListener(queues = QUEUE, containerFactory = "batchContainerFactory")
+    public void readMessage(PointsHistory points, Message message, Channel channel, @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag) {
+        // a repeat still goes through the pipeline so that it gets acked in order with its batch
+        final boolean repeated = recentSelectors.seen(points.getSelector()) || recentAwards.seen(PointsHistory.awardKey(points));
+        deliveries.next(new Delivery(repeated ? null : points, message, channel, deliveryTag));
+    }
+
+    private Mono<List<PointsHistory>> write(List<Delivery> batch) {
+        final long started = System.nanoTime();
+        final long now = System.currentTimeMillis();
+        final UUID creditBatch = UUID.randomUUID();
+        final List<PointsHistory> entries = batch.stream()
+                .map(Delivery::getPoints)
+                .filter(Objects::nonNull)
+                .peek(entry -> {
+                    if (entry.getCreatedAt() == null) {
+                        entry.setCreatedAt(now);
+                    }
+                    // rolled up by the creditor, so the backfill must not count it again
+                    entry.setRolledUp(true);
+                    entry.setBatch(creditBatch);
+                    entry.setCredited(false);
+                })
+                .collect(Collectors.toList());
+        batchSize.record(entries.size());
+        return bulkWriter.insert(entries)
+                .flatMap(inserted -> creditor.credit(creditBatch, inserted)
+                        // the entries are stored as uncredited, a redelivery would be dropped as a repeat
+                        .onErrorResume(e -> {
+                            log.warn("could not credit batch " + creditBatch + ", leaving it to the reconciler", e);
+                            return Mono.empty();
+                        })
+                        .thenReturn(inserted))
+                .doOnNext(inserted -> {
+                    entries.forEach(entry -> {
+                        recentSelectors.record(entry.getSelector());
+                        recentAwards.record(PointsHistory.awardKey(entry));
+                    });
+                    batch.forEach(delivery -> delivery.settle(true));
+                    batchLatency.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                })
+                .onErrorResume(e -> {
+                    log.error("failed to store " + entries.size() + " points entries, retrying the deliveries", e);
+                    batch.forEach(delivery -> delivery.settle(false));
+                    return Mono.empty();
+                });
+    }
+
+    @Data
+    @AllArgsConstructor
+    class Delivery {
+        private PointsHistory points;
+        private Message message;
+        private Channel channel;
+        private long deliveryTag;
+
+        void settle(boolean stored) {
+            // channels are not thread safe and batches complete on Mongo threads
+            synchronized (channel) {
+                try {
+                    if (stored || deliveryRetry.retryOrDeadLetter(QUEUE, message)) {
+                        channel.basicAck(deliveryTag, false);
+                    } else {
+                        channel.basicNack(deliveryTag, false, true);
+                    }
+                } catch (IOException e) {
+                    log.warn("could not settle delivery " + deliveryTag, e);
+                }
+            }
+        }
+    }
+}
+
+@Data
+@AllArgsConstructor
+class LeaderboardEntry {
+    private int rank;
+    private String createdBy;
+    private long amount;
+}
+
+/**
+ * Point totals per user, kept in a treap ordered by total (highest first, ties by user) where every
+ * node knows the size of its subtree. Updates, rank lookups and the first {@code n} entries all take
+ * logarithmic time, so the board follows points-queue event by event instead of aggregating history.
+ * It is fed by {@link LeaderboardFeed}.
+ */
+@Component
+class Leaderboard {
+
+    private final Map<String, Long> totals = new HashMap<>();
+    private final Random random = new Random();
+    private Node root;
+
+    public synchronized void reset(Map<String, Long> initial) {
+        totals.clear();
+        root = null;
+        initial.forEach(this::add);
+    }
+
+    public synchronized void add(String user, long amount) {
+        final Long previous = totals.get(user);
+        set(user, previous == null ? amount : previous + amount);
+    }
+
+    public synchronized void set(String user, long total) {
+        final Long previous = totals.put(user, total);
+        if (previous != null) {
+            root = remove(root, previous, user);
+        }
+        final Node[] parts = split(root, total, user);
+        root = merge(merge(parts[0], new Node(user, total, random.nextInt())), parts[1]);
+    }
+
+    public synchronized List<LeaderboardEntry> top(int limit) {
+        final List<LeaderboardEntry> entries = new ArrayList<>(Math.min(limit, totals.size()));
+        final Deque<Node> path = new ArrayDeque<>();
+        Node node = root;
+        while ((node != null || !path.isEmpty()) && entries.size() < limit) {
+            while (node != null) {
+                path.push(node);
+                node = node.left;
+            }
+            node = path.pop();
+            entries.add(new LeaderboardEntry(entries.size() + 1, node.user, node.total));
+            node = node.right;
+        }
+        return entries;
+    }
+
+    /**
+     * The user's place on the board, or {@code null} when the user has no points.
+     */
+    public synchronized LeaderboardEntry rank(String user) {
+        final Long total = totals.get(user);
+        if (total == null) {
+            return null;
+        }
+        int ahead = 0;
+        Node node = root;
+        while (node != null) {
+            final int order = compare(total, user, node);
+            if (order < 0) {
+                node = node.left;
+            } else if (order > 0) {
+                ahead += size(node.left) + 1;
+                node = node.right;
+            } else {
+                ahead += size(node.left);
+                break;
+            }
+        }
+        return new LeaderboardEntry(ahead + 1, user, total);
+    }
+
+    private static int compare(long total, String user, Node node) {
+        if (total != node.total) {
+            return total > node.total ? -1 : 1;
+        }
+        return user.compareTo(node.user);
+    }
+
+    /**
+     * Splits into the nodes ordered before the given key and the rest.
+     */
+    private static Node[] split(Node node, long total, String user) {
+        if (node == null) {
+            return new Node[]{null, null};
+        }
+        if (compare(total, user, node) > 0) {
+            final Node[] parts = split(node.right, total, user);
+            node.right = parts[0];
+            node.resize();
+            return new Node[]{node, parts[1]};
+        }
+        final Node[] parts = split(node.left, total, user);
+        node.left = parts[1];
+        node.resize();
+        return new Node[]{parts[0], node};
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            left.resize();
+            return left;
+        }
+        right.left = merge(left, right.left);
+        right.resize();
+        return right;
+    }
+
+    private static Node remove(Node node, long total, String user) {
+        if (node == null) {
+            return null;
+        }
+        final int order = compare(total, user, node);
+        if (order == 0) {
+            return merge(node.left, node.right);
+        }
+        if (order < 0) {
+            node.left = remove(node.left, total, user);
+        } else {
+            node.right = remove(node.right, total, user);
+        }
+        node.resize();
+        return node;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node {
+        private final String user;
+        private final long total;
+        private final int priority;
+        private int size = 1;
+        private Node left;
+        private Node right;
+
+        private Node(String user, long total, int priority) {
+            this.user = user;
+            this.total = total;
+            this.priority = priority;
+        }
+
+        private void resize() {
+            size = size(left) + size(right) + 1;
+        }
+    }
+}
+
+/**
+ * Keeps every instance's {@link Leaderboard} complete although points-queue is split between competing
+ * consumers: once a batch is credited, the new totals of its users are read back and broadcast on
+ * inabottle-exchange, and every instance, this one included, sets them on its board from its own queue.
+ * Broadcasting totals rather than amounts makes a broadcast that overlaps a reload from the stored
+ * totals harmless. A broadcast that is lost is made good by reloading the board every
+ * {@code points.leaderboard.resync}.
+ */
+@Component
+@Slf4j
+class LeaderboardFeed {
+
+    static final String CREDITED_ROUTING_KEY = "leaderboard.credited";
+
+    private final Leaderboard leaderboard;
+    private final UserPointsRepository userPointsRepository;
+    private final RabbitTemplate rabbitTemplate;
+    private final Duration resync;
+    private Disposable resyncs;
+
+    public LeaderboardFeed(Leaderboard leaderboard, UserPointsRepository userPointsRepository, RabbitTemplate rabbitTemplate,
+                           @Value("${points.leaderboard.resync:5m}") Duration resync) {
+        this.leaderboard = leaderboard;
+        this.userPointsRepository = userPointsRepository;
+        this.rabbitTemplate = rabbitTemplate;
+        this.resync = resync;
+    }
+
+    @PostConstruct
+    void start() {
+        resyncs = Flux.interval(resync)
+                .onBackpressureDrop()
+                .concatMap(tick -> load().onErrorResume(e -> {
+                    log.warn("could not resync the leaderboard", e);
+                    return Mono.empty();
+                }))
+                .subscribe();
+    }
+
+    @PreDestroy
+    void stop() {
+        resyncs.dispose();
+    }
+
+    /**
+     * Replaces the board with the stored totals and returns how many users it holds.
+     */
+    public Mono<Integer> load() {
+        return userPointsRepository.findAll()
+                .collectMap(UserPoints::getCreatedBy, points -> points.getAmount().longValue())
+                .doOnNext(leaderboard::reset)
+                .map(Map::size);
+    }
+
+    /**
+     * Broadcasts the current totals of the users.
+     */
+    public Mono<Void> publish(Collection<String> users) {
+        if (users.isEmpty()) {
+            return Mono.empty();
+        }
+        return userPointsRepository.findAllById(users)
+                .collectMap(UserPoints::getCreatedBy, points -> points.getAmount().longValue(), HashMap::new)
+                .flatMap(totals -> Mono.fromRunnable(() -> rabbitTemplate.convertAndSend("inabottle-exchange", CREDITED_ROUTING_KEY, totals))
+                        .subscribeOn(Schedulers.boundedElastic()))
+                .then()
+                .onErrorResume(e -> {
+                    log.warn("could not broadcast the totals of " + users.size() + " users, boards catch up at the next resync", e);
+                    return Mono.empty();
+                });
+    }
+
+    @RabbitListener(queues = "#{leaderboardQueue.name}")
+    public void readTotals(Map<String, Long> totals) {
+        totals.forEach(leaderboard::set);
+    }
+}
+
+/**
+ * Reads one user's history in (createdAt, selector) order with keyset pagination on the user_history
+ * index: every page continues strictly after the last entry of the previous one, so deep pages cost
+ * the same as the first. Entries stored before createdAt existed come first, ordered by selector.
+ */
+@Component
+class PointsHistoryReader {
+
+    private final ReactiveMongoTemplate mongoTemplate;
+    private final int pageSize;
+
+    public PointsHistoryReader(ReactiveMongoTemplate mongoTemplate, @Value("${points.history.page-size:500}") int pageSize) {
+        this.mongoTemplate = mongoTemplate;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * The whole history, or the part created at or after {@code from}. A page is only fetched once the
+     * previous one has been consumed.
+     */
+    public Flux<PointsHistoryEntry> stream(String user, Long from) {
+        final Mono<List<PointsHistoryEntry>> first = from == null
+                ? undated(user, null)
+                : dated(user, where("createdAt").gte(from), pageSize);
+        return first
+                .expand(page -> page.size() < pageSize ? Mono.empty() : after(user, page.get(page.size() - 1)))
+                // the default prefetch would pull many pages ahead of a slow client
+                .concatMapIterable(page -> page, 1);
+    }
+
+    private Mono<List<PointsHistoryEntry>> after(String user, PointsHistoryEntry last) {
+        if (last.getCreatedAt() == null) {
+            return undated(user, last.getSelector());
+        }
+        return dated(user, new Criteria().orOperator(
+                where("createdAt").gt(last.getCreatedAt()),
+                where("createdAt").is(last.getCreatedAt()).and("selector").gt(last.getSelector())), pageSize);
+    }
+
+    /**
+     * A page of entries without createdAt, topped up with the first dated entries once they run out.
+     */
+    private Mono<List<PointsHistoryEntry>> undated(String user, UUID afterSelector) {
+        Criteria criteria = where("createdBy").is(user).and("createdAt").is(null);
+        if (afterSelector != null) {
+            criteria = criteria.and("selector").gt(afterSelector);
+        }
+        return find(query(criteria).with(Sort.by("selector")).limit(pageSize))
+                .flatMap(page -> page.size() == pageSize
+                        ? Mono.just(page)
+                        : dated(user, where("createdAt").gt(Long.MIN_VALUE), pageSize - page.size())
+                        .map(rest -> {
+                            final List<PointsHistoryEntry> joined = new ArrayList<>(page);
+                            joined.addAll(rest);
+                            return joined;
+                        }));
+    }
+
+    private Mono<List<PointsHistoryEntry>> dated(String user, Criteria position, int limit) {
+        return find(query(where("createdBy").is(user).andOperator(position))
+                .with(Sort.by("createdAt", "selector"))
+                .limit(limit));
     }
 
-    @RabbitListener(queues = "points-queue")
-    public void readMessage(PointsHistory points) {
-        pointsHistoryRepository.save(points).subscribe();
+    private Mono<List<PointsHistoryEntry>> find(Query query) {
+        // only the entry view's fields are read
+        return mongoTemplate.query(PointsHistory.class)
+                .as(PointsHistoryEntry.class)
+                .matching(query)
+                .all()
+                .collectList();
     }
 }
 
+@RestController
+class PointsController {
+
+    private static final int MAX_LEADERBOARD_SIZE = 1000;
+    private static final int MAX_ROLLUP_BUCKETS = 1000;
+
+    private final Leaderboard leaderboard;
+    private final UserPointsRepository userPointsRepository;
+    private final PointsRollupRepository pointsRollupRepository;
+    private final PointsHistoryReader pointsHistoryReader;
+
+    public PointsController(Leaderboard leaderboard, UserPointsRepository userPointsRepository,
+                            PointsRollupRepository pointsRollupRepository, PointsHistoryReader pointsHistoryReader) {
+        this.leaderboard = leaderboard;
+        this.userPointsRepository = userPointsRepository;
+        this.pointsRollupRepository = pointsRollupRepository;
+        this.pointsHistoryReader = pointsHistoryReader;
+    }
+
+    @GetMapping(value = "/points/history/{user}", produces = {MediaType.APPLICATION_STREAM_JSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})
+    public Flux<PointsHistoryEntry> getHistory(@PathVariable("user") String user,
+                                               @RequestParam(value = "from", required = false) Long from) {
+        return pointsHistoryReader.stream(user, from);
+    }
+
+    @GetMapping("/points/{user}")
+    public Mono<UserPoints> getPoints(@PathVariable("user") String user) {
+        return userPointsRepository.findById(user);
+    }
+
+    @GetMapping("/points/leaderboard")
+    public Flux<LeaderboardEntry> getLeaderboard(@RequestParam(value = "limit", defaultValue = "10") int limit) {
+        return Flux.fromIterable(leaderboard.top(Math.max(1, Math.min(limit, MAX_LEADERBOARD_SIZE))));
+    }
+
+    @GetMapping("/points/rollups/user/{user}")
+    public Flux<PointsRollup> getUserRollups(@PathVariable("user") String user,
+                                             @RequestParam(value = "granularity", defaultValue = "day") String granularity,
+                                             @RequestParam(value = "from", required = false) Long from,
+                                             @RequestParam(value = "to", required = false) Long to) {
+        return rollups(PointsRollup.USER, user, granularity, from, to);
+    }
+
+    @GetMapping("/points/rollups/type/{typeSource}")
+    public Flux<PointsRollup> getTypeRollups(@PathVariable("typeSource") String typeSource,
+                                             @RequestParam(value = "granularity", defaultValue = "day") String granularity,
+                                             @RequestParam(value = "from", required = false) Long from,
+                                             @RequestParam(value = "to", required = false) Long to) {
+        return rollups(PointsRollup.TYPE, typeSource, granularity, from, to);
+    }
+
+    /**
+     * Buckets whose window starts within [from, to), oldest first; {@code from} is moved back to the
+     * start of its window so the window holding it is included.
+     */
+    private Flux<PointsRollup> rollups(String scope, String key, String granularity, Long from, Long to) {
+        if (!PointsRollup.GRANULARITIES.contains(granularity)) {
+            return Flux.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "granularity must be one of " + PointsRollup.GRANULARITIES));
+        }
+        final Range<Long> periodStart = Range.of(from == null ? Bound.<Long>unbounded() : Bound.inclusive(PointsRollup.periodStart(granularity, from)),
+                to == null ? Bound.<Long>unbounded() : Bound.exclusive(to));
+        return pointsRollupRepository.findByScopeAndKeyAndGranularityAndPeriodStartBetween(scope, key, granularity, periodStart,
+                PageRequest.of(0, MAX_ROLLUP_BUCKETS, Sort.by("periodStart")));
+    }
+
+    @GetMapping("/points/rank/{user}")
+    public Mono<LeaderboardEntry> getRank(@PathVariable("user") String user) {
+        return Mono.justOrEmpty(leaderboard.rank(user));
+    }
+}
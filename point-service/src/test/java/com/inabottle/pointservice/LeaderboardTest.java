@@ -0,0 +1,122 @@
+package com.inabottle.pointservice;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LeaderboardTest {
+
+	private final Leaderboard leaderboard = new Leaderboard();
+
+	@Test
+	void ordersByTotalThenByUser() {
+		leaderboard.add("carol", 10);
+		leaderboard.add("bob", 20);
+		leaderboard.add("alice", 10);
+
+		assertThat(leaderboard.top(10)).containsExactly(
+				new LeaderboardEntry(1, "bob", 20),
+				new LeaderboardEntry(2, "alice", 10),
+				new LeaderboardEntry(3, "carol", 10));
+	}
+
+	@Test
+	void tiesAreRankedByUser() {
+		leaderboard.add("bob", 5);
+		leaderboard.add("alice", 5);
+
+		assertThat(leaderboard.rank("alice")).isEqualTo(new LeaderboardEntry(1, "alice", 5));
+		assertThat(leaderboard.rank("bob")).isEqualTo(new LeaderboardEntry(2, "bob", 5));
+	}
+
+	@Test
+	void updateMovesTheUser() {
+		leaderboard.add("alice", 30);
+		leaderboard.add("bob", 20);
+		leaderboard.add("carol", 10);
+
+		leaderboard.add("carol", 25);
+
+		assertThat(leaderboard.top(10)).containsExactly(
+				new LeaderboardEntry(1, "carol", 35),
+				new LeaderboardEntry(2, "alice", 30),
+				new LeaderboardEntry(3, "bob", 20));
+
+		leaderboard.add("carol", -30);
+
+		assertThat(leaderboard.rank("carol")).isEqualTo(new LeaderboardEntry(3, "carol", 5));
+		assertThat(leaderboard.top(10)).hasSize(3);
+	}
+
+	@Test
+	void setReplacesTheTotalWhateverWasAddedBefore() {
+		leaderboard.add("alice", 10);
+		leaderboard.add("bob", 20);
+
+		leaderboard.set("alice", 30);
+		leaderboard.set("alice", 30);
+		leaderboard.set("carol", 5);
+
+		assertThat(leaderboard.top(10)).containsExactly(
+				new LeaderboardEntry(1, "alice", 30),
+				new LeaderboardEntry(2, "bob", 20),
+				new LeaderboardEntry(3, "carol", 5));
+	}
+
+	@Test
+	void topIsLimited() {
+		leaderboard.add("alice", 3);
+		leaderboard.add("bob", 2);
+		leaderboard.add("carol", 1);
+
+		assertThat(leaderboard.top(2)).extracting(LeaderboardEntry::getCreatedBy).containsExactly("alice", "bob");
+	}
+
+	@Test
+	void unknownUserHasNoRank() {
+		leaderboard.add("alice", 1);
+
+		assertThat(leaderboard.rank("bob")).isNull();
+	}
+
+	@Test
+	void resetReplacesTheBoard() {
+		leaderboard.add("alice", 100);
+
+		leaderboard.reset(Map.of("bob", 7L, "carol", 9L));
+
+		assertThat(leaderboard.rank("alice")).isNull();
+		assertThat(leaderboard.top(10)).extracting(LeaderboardEntry::getCreatedBy).containsExactly("carol", "bob");
+	}
+
+	@Test
+	void rankAndTopAgreeWithASortAfterRandomUpdates() {
+		final Random random = new Random(42);
+		final Map<String, Long> totals = new HashMap<>();
+		for (int i = 0; i < 5_000; i++) {
+			final String user = "user" + random.nextInt(300);
+			// small amounts keep ties frequent
+			final long amount = random.nextInt(21) - 5;
+			leaderboard.add(user, amount);
+			totals.merge(user, amount, Long::sum);
+		}
+
+		final List<String> expected = totals.keySet().stream()
+				.sorted(Comparator.<String>comparingLong(totals::get).reversed().thenComparing(Comparator.naturalOrder()))
+				.collect(Collectors.toList());
+		final List<LeaderboardEntry> top = leaderboard.top(expected.size());
+
+		assertThat(top).extracting(LeaderboardEntry::getCreatedBy).containsExactlyElementsOf(expected);
+		for (LeaderboardEntry entry : top) {
+			assertThat(entry.getAmount()).isEqualTo(totals.get(entry.getCreatedBy()));
+			assertThat(leaderboard.rank(entry.getCreatedBy())).isEqualTo(entry);
+		}
+	}
+}
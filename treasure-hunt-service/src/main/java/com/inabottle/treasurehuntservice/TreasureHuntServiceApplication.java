@@ -1,12 +1,15 @@
 package com.inabottle.treasurehuntservice;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.inabottle.messaging.TypedJacksonMessageConverter;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
@@ -23,6 +26,7 @@ import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.UUID;
 
@@ -37,15 +41,18 @@ class TreasureHuntServiceApplication {
     }
 
     @Bean
-    public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory) {
+    public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory, final MessageConverter messageConverter) {
         final var rabbitTemplate = new RabbitTemplate(connectionFactory);
-        rabbitTemplate.setMessageConverter(producerJackson2MessageConverter());
+        rabbitTemplate.setMessageConverter(messageConverter);
         return rabbitTemplate;
     }
 
     @Bean
-    public Jackson2JsonMessageConverter producerJackson2MessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    public MessageConverter messageConverter(ObjectMapper objectMapper,
+                                             @Value("${inabottle.amqp.content-type:application/json}") String contentType) {
+        return TypedJacksonMessageConverter.SMILE.equals(contentType)
+                ? TypedJacksonMessageConverter.smile()
+                : TypedJacksonMessageConverter.json(objectMapper);
     }
 }
 
@@ -105,6 +112,7 @@ class PointsHistory {
     private UUID idSource;
     final private String typeSource = "Treasure";
     private Integer amount;
+    private Long createdAt;
 }
 
 interface TreasureHuntRepository extends ReactiveMongoRepository<TreasureHunt, UUID> {
@@ -138,7 +146,11 @@ class PointsProducer {
 
     public void sendPoints(TreasureHunt treasureHunt) {
         if (treasureHunt.getExtraPoints() != null) {
-            final PointsHistory points = new PointsHistory(UUID.randomUUID(), treasureHunt.getCreatedBy(), treasureHunt.getSelector(), treasureHunt.getExtraPoints());
+            // the same award always carries the same selector, so resends are recognised downstream
+            final UUID selector = UUID.nameUUIDFromBytes((treasureHunt.getCreatedBy() + "|" + treasureHunt.getSelector() + "|Treasure")
+                    .getBytes(StandardCharsets.UTF_8));
+            final PointsHistory points = new PointsHistory(selector, treasureHunt.getCreatedBy(), treasureHunt.getSelector(), treasureHunt.getExtraPoints(),
+                    System.currentTimeMillis());
             rabbitTemplate.convertAndSend("inabottle-exchange", "points.add", points);
         }
     }
@@ -190,5 +202,3 @@ class TreasureHuntController {
     }
 
 }
-
-